@@ -0,0 +1,69 @@
+package com.luminis.echochamber.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AccountCollectionBenchmark {
+	@Param({"1000", "10000", "100000"})
+	public int size;
+
+	@Param({"heap", "mapped"})
+	public String store;
+
+	private AccountCollection accounts;
+	private Account extra;
+	private Path table;
+
+	@Setup
+	public void setup() throws IOException {
+		if (store.equals("mapped")) {
+			table = Files.createTempFile("accounts", ".table");
+			accounts = new AccountCollection(MappedAccountTable.open(table, size));
+		} else {
+			accounts = new AccountCollection();
+		}
+		byte[] password = "secret".getBytes();
+		for (int i = 0; i < size; i++) {
+			accounts.add(new Account("user" + i, password.clone()));
+		}
+		extra = new Account("extra", password.clone());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		if (table != null) {
+			accounts.closeTable();
+			Files.delete(table);
+			Files.delete(Paths.get(table + ".edges"));
+			Files.delete(Paths.get(table + ".index"));
+		}
+	}
+
+	@Benchmark
+	public Account getAccountByName() {
+		return accounts.getAccountByName("user" + ThreadLocalRandom.current().nextInt(size));
+	}
+
+	@Benchmark
+	public Account getAccountByNameMissing() {
+		return accounts.getAccountByName("nobody");
+	}
+
+	@Benchmark
+	public boolean addAndRemove() {
+		accounts.add(extra);
+		return accounts.removeByName("extra");
+	}
+}
@@ -0,0 +1,52 @@
+package com.luminis.echochamber.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChannelBroadcastBenchmark {
+	@Param({"1", "10", "100", "1000"})
+	public int members;
+
+	private Channel channel;
+	private List<Client> clients = new ArrayList<>();
+
+	@Setup
+	public void setup() throws InterruptedException {
+		Server server = new Server(new AccountCollection());
+		channel = new Channel("Benchmark");
+		for (int i = 0; i < members; i++) {
+			Client client = new SinkClient(server, Security.createUUID());
+			client.connectedAccount = new Account("user" + i);
+			channel.subscribe(client);
+			clients.add(client);
+		}
+		settle(); // the subscriptions
+		settle(); // the presence broadcasts they sent
+	}
+
+	// Includes delivery by the shards, not just handing the broadcast to them
+	@Benchmark
+	public void shout() throws InterruptedException {
+		channel.shout("Did anybody see the game last night?", clients.get(0));
+		settle();
+	}
+
+	// Waits until every shard has run the tasks posted to it so far
+	private static void settle() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(Settings.shards);
+		for (int i = 0; i < Settings.shards; i++) {
+			Shard.get(i).execute(done::countDown);
+		}
+		done.await();
+	}
+}
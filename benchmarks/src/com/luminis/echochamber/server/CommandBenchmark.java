@@ -0,0 +1,38 @@
+package com.luminis.echochamber.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CommandBenchmark {
+	private Command help, whisper, login;
+
+	@Setup
+	public void setup() {
+		help = new helpCommand();
+		whisper = new whisperCommand();
+		login = new loginCommand();
+	}
+
+	@Benchmark
+	public Map<String, String> noArguments() throws Exception {
+		return help.argumentStringParser("");
+	}
+
+	@Benchmark
+	public Map<String, String> greedyLastArgument() throws Exception {
+		return whisper.argumentStringParser("alice meet me in the other channel in five minutes");
+	}
+
+	@Benchmark
+	public Map<String, String> twoArguments() throws Exception {
+		return login.argumentStringParser("alice secret");
+	}
+}
@@ -0,0 +1,56 @@
+package com.luminis.echochamber.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.luminis.echochamber.server.ClientState.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InputParserBenchmark {
+	private Client client;
+	private InputParser parser;
+
+	@Setup
+	public void setup() {
+		Server server = new Server(new AccountCollection());
+		client = new SinkClient(server, Security.createUUID()); // receives its own shouts and whispers
+		client.inputFromRemote("/setname benchmark");
+
+		parser = new InputParser();
+		parser.addCommand(new helpCommand());
+		parser.addCommand(new shoutCommand());
+		parser.addCommand(new whisperCommand());
+		parser.addCommand(new noCommand());
+	}
+
+	@Benchmark
+	public String plainText() throws Exception {
+		return parser.evaluate(client, TRANSIENT, "hello everybody in this channel");
+	}
+
+	@Benchmark
+	public String help() throws Exception {
+		return parser.evaluate(client, TRANSIENT, "/help whisper");
+	}
+
+	@Benchmark
+	public String whisper() throws Exception {
+		return parser.evaluate(client, TRANSIENT, "/whisper benchmark psst, over here");
+	}
+
+	@Benchmark
+	public void unknownCommand(Blackhole blackhole) {
+		try {
+			parser.evaluate(client, TRANSIENT, "/nonsense");
+		} catch (Exception e) {
+			blackhole.consume(e);
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.luminis.echochamber.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PersistenceBenchmark {
+	@Param({"100", "10000"})
+	public int size;
+
+	private AccountCollection accounts;
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		accounts = new AccountCollection();
+		Account previous = null;
+		for (int i = 0; i < size; i++) {
+			Account account = new Account("user" + i, new byte[] {'P', 'W', 'D'});
+			if (previous != null) { // give every account a friend to serialize
+				account.addRelation(previous);
+				previous.addRelation(account);
+			}
+			accounts.add(account);
+			previous = account;
+		}
+		file = Files.createTempFile("accounts", ".json");
+		Main.writeAccounts(accounts, file);
+	}
+
+	@TearDown
+	public void removeFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public AccountCollection readAccounts() throws IOException {
+		return Main.readAccounts(file);
+	}
+
+	@Benchmark
+	public void writeAccounts() {
+		Main.writeAccounts(accounts, file);
+	}
+}
@@ -0,0 +1,42 @@
+package com.luminis.echochamber.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RelationsBenchmark {
+	@Param({"0", "100", "1000"})
+	public int existingFriends;
+
+	private Account alice, bob;
+
+	@Setup
+	public void setup() {
+		alice = new Account("alice", new byte[] {'P', 'W', 'D'});
+		bob = new Account("bob", new byte[] {'P', 'W', 'D'});
+		for (int i = 0; i < existingFriends; i++) {
+			Account friend = new Account("friend" + i, new byte[] {'P', 'W', 'D'});
+			alice.addRelation(friend);
+			friend.addRelation(alice);
+		}
+	}
+
+	@Benchmark
+	public void requestAcceptAndRemove() {
+		alice.addRelation(bob);
+		bob.addRelation(alice);
+		alice.removeRelation(bob);
+	}
+
+	@Benchmark
+	public void requestAndCancel() {
+		alice.addRelation(bob);
+		alice.removeRelation(bob);
+	}
+}
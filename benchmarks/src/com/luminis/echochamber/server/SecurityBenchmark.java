@@ -0,0 +1,39 @@
+package com.luminis.echochamber.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SecurityBenchmark {
+	private static final byte[] password = "correct horse battery staple".getBytes();
+
+	private byte[] salt;
+	private Account account;
+
+	@Setup
+	public void setup() {
+		salt = Security.getNewSalt();
+		account = new Account("benchmark", password.clone());
+	}
+
+	@Benchmark
+	public byte[] calculateHash() {
+		return Security.calculateHash(Security.saltPassword(salt, password.clone())); // both calls zero their input
+	}
+
+	@Benchmark
+	public boolean checkPassword() {
+		return account.checkPassword(password.clone());
+	}
+
+	@Benchmark
+	public boolean checkWrongPassword() {
+		return account.checkPassword("wrong".getBytes());
+	}
+}
@@ -0,0 +1,17 @@
+package com.luminis.echochamber.server;
+
+import java.util.UUID;
+
+// A session that takes its output off the queue right away, like a connection that keeps up, so that a benchmark does
+// not pile up output for the whole iteration. Output is queued on the shard thread, the only one that takes it here.
+class SinkClient extends Client {
+	SinkClient(Server server, UUID id) {
+		super(server, id);
+	}
+
+	@Override
+	void message(Message message) {
+		super.message(message);
+		outputForRemote();
+	}
+}
@@ -0,0 +1,139 @@
+package com.luminis.echochamber.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares plain TCP with TLS, with and without session resumption: the cost of a complete connection (connect,
+ * handshake, session setup, teardown) and of a command round trip on an established connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Dechochamber.maxConnections=100000", "-Dechochamber.maxConnectionsPerAddress=100000", "-Dechochamber.acceptRate=0"})
+public class TransportBenchmark {
+	private static final char[] password = "benchmark".toCharArray();
+
+	@Param({"plain", "tls", "tls-no-resumption"})
+	public String transport;
+
+	private Server server;
+	private int port;
+	private Path keystore;
+	private SSLContext clientContext;
+
+	@Setup
+	public void setup() throws Exception {
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		SSLContext serverContext = null;
+		if (!transport.equals("plain")) {
+			keystore = Files.createTempFile("benchmark", ".p12");
+			Files.delete(keystore);
+			Process keytool = new ProcessBuilder(System.getProperty("java.home") + "/bin/keytool", "-genkeypair",
+					"-alias", "benchmark", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1",
+					"-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", new String(password), "-keypass", new String(password))
+					.inheritIO().start();
+			if (keytool.waitFor() != 0) throw new IllegalStateException("keytool failed");
+
+			serverContext = Tls.serverContext(keystore, password);
+			clientContext = trusting(keystore);
+		}
+
+		server = new Server(new AccountCollection());
+		ConnectionManager connectionManager = new ConnectionManager(port, server, serverContext);
+		new Thread(connectionManager::start, "Listener").start();
+		Thread.sleep(200);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		server.shutdown();
+		if (keystore != null) Files.deleteIfExists(keystore);
+	}
+
+	@State(Scope.Thread)
+	public static class Session {
+		Socket socket;
+		BufferedReader in;
+		Writer out;
+
+		@Setup
+		public void connect(TransportBenchmark benchmark) throws IOException {
+			socket = benchmark.open();
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+		}
+
+		@TearDown
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	@Benchmark
+	public void connectionSetup() throws IOException {
+		try (Socket socket = open()) {
+			socket.getOutputStream().write("/exit\n".getBytes(StandardCharsets.UTF_8));
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			while (in.read(buffer) >= 0) {
+				// read until the server hangs up
+			}
+			if (transport.equals("tls-no-resumption")) {
+				((SSLSocket) socket).getSession().invalidate();
+			}
+		}
+	}
+
+	@Benchmark
+	public String commandRoundTrip(Session session) throws IOException {
+		session.out.write("/help\n");
+		session.out.flush();
+		String line;
+		while ((line = session.in.readLine()) != null && !line.startsWith("Available commands")) {
+			// skip welcome and join messages
+		}
+		return line;
+	}
+
+	// Time until a client that does not send first, like an interactive one, gets the welcome
+	@Benchmark
+	public String welcome() throws IOException {
+		try (Socket socket = open()) {
+			return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+		}
+	}
+
+	private Socket open() throws IOException {
+		Socket socket = clientContext == null ? new Socket("localhost", port) : clientContext.getSocketFactory().createSocket("localhost", port);
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	private static SSLContext trusting(Path keystore) throws Exception {
+		KeyStore trusted = KeyStore.getInstance("PKCS12");
+		try (InputStream in = Files.newInputStream(keystore)) {
+			trusted.load(in, password);
+		}
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(trusted);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustManagers.getTrustManagers(), null);
+		return context;
+	}
+}
@@ -0,0 +1,58 @@
+package com.luminis.echochamber.client;
+
+/**
+ * Log-linear latency histogram (32 sub-buckets per power of two, about 3% relative error). Not thread safe: the load
+ * generator records from its single selector thread.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final long[] counts = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+	private long count = 0;
+	private long max = 0;
+
+	void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts[index(nanos)]++;
+		count++;
+		max = Math.max(max, nanos);
+	}
+
+	long count() {
+		return count;
+	}
+
+	long max() {
+		return max;
+	}
+
+	long valueAtQuantile(double quantile) {
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(upperBound(i), max);
+		}
+		return max;
+	}
+
+	void reset() {
+		java.util.Arrays.fill(counts, 0);
+		count = 0;
+		max = 0;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) return index;
+		int shift = index / SUB_BUCKETS - 1;
+		return ((long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift) + (1L << shift) - 1;
+	}
+}
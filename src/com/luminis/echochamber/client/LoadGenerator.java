@@ -0,0 +1,377 @@
+package com.luminis.echochamber.client;
+
+import com.luminis.echochamber.protocol.Compression;
+import com.luminis.echochamber.protocol.Frame;
+import com.luminis.echochamber.protocol.FrameDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Headless load generator. Simulates many chat sessions from one process over a single NIO selector thread. Each
+ * session names itself, optionally makes its account permanent, and then executes a random mix of shouts, whispers,
+ * friend requests, logout/login cycles and dropped connections that are resumed with a resume token, at a fixed rate.
+ *
+ * Shouts and whispers carry a send timestamp; every delivery of such a message to any simulated session is recorded as
+ * an end-to-end latency sample. Note that the server limits connections per address and the accept rate by default, so
+ * start it with suitable -Dechochamber.* settings.
+ */
+class LoadGenerator {
+	private static final String MARKER = "#lg ";
+	private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+	private final InetSocketAddress address;
+	private final int numberOfSessions;
+	private final long duration;
+	private final double rate;
+	private final int connectRate;
+	private final double permanentFraction;
+	private final int[] mix; // cumulative weights for shout, whisper, befriend, login, reconnect
+	private final boolean binary;
+	private final boolean compress;
+	private final byte[] inflated = new byte[65536];
+	private final String runId = Integer.toString(ThreadLocalRandom.current().nextInt(0x10000), 36);
+
+	private final Selector selector;
+	private final List<Session> sessions = new ArrayList<>();
+	private final List<Session> connected = new ArrayList<>();
+	private final List<Session> permanent = new ArrayList<>();
+	private final PriorityQueue<Session> schedule = new PriorityQueue<>(Comparator.comparingLong((Session s) -> s.nextAction));
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram intervalLatency = new LatencyHistogram();
+	private long sent = 0, received = 0, failed = 0, reconnects = 0;
+
+	private LoadGenerator(Map<String, String> options) throws IOException {
+		address = new InetSocketAddress(options.getOrDefault("host", "localhost"), Integer.parseInt(options.getOrDefault("port", "4444")));
+		numberOfSessions = Integer.parseInt(options.getOrDefault("sessions", "1000"));
+		duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60")));
+		rate = Double.parseDouble(options.getOrDefault("rate", "1"));
+		connectRate = Integer.parseInt(options.getOrDefault("connectRate", "200"));
+		permanentFraction = Double.parseDouble(options.getOrDefault("permanent", "0.2"));
+		binary = options.getOrDefault("protocol", "text").equals("binary");
+		compress = Boolean.parseBoolean(options.getOrDefault("compress", "false"));
+
+		String[] weights = options.getOrDefault("mix", "70,20,5,5,0").split(",");
+		mix = new int[5];
+		for (int i = 0; i < mix.length; i++) {
+			mix[i] = (i > 0 ? mix[i - 1] : 0) + (i < weights.length ? Integer.parseInt(weights[i].trim()) : 0);
+		}
+		selector = Selector.open();
+	}
+
+	static void main(String[] args) throws IOException {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			String[] option = arg.split("=", 2);
+			if (option.length != 2) {
+				System.err.println("Invalid option '" + arg + "', expected <name>=<value>");
+				System.exit(1);
+			}
+			options.put(option[0], option[1]);
+		}
+		new LoadGenerator(options).run();
+	}
+
+	private class Session {
+		final String name;
+		final String password;
+		final boolean isPermanent;
+		SocketChannel channel;
+		final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+		FrameDecoder decoder;
+		Inflater inflater;
+		int handshakeBytes; // still to be skipped before the first frame, -1 while the server writes text before its answer
+		long nextAction;
+		String resumeToken;
+		boolean resuming;
+
+		Session(int index) {
+			name = "lg" + runId + "_" + index;
+			password = "pwd" + index;
+			isPermanent = index < numberOfSessions * permanentFraction;
+		}
+
+		void connect() throws IOException {
+			decoder = new FrameDecoder(1 << 20);
+			inflater = compress ? new Inflater() : null;
+			handshakeBytes = binary || compress ? -1 : 0;
+			line.reset();
+			pendingWrites.clear();
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+			if (channel.connect(address)) {
+				connected();
+			} else {
+				channel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		}
+
+		void connected() throws IOException {
+			channel.register(selector, SelectionKey.OP_READ, this);
+			if (binary || compress) {
+				write(ByteBuffer.wrap(Frame.handshake((binary ? Frame.FLAG_BINARY : 0) | (compress ? Frame.FLAG_DEFLATE : 0))));
+			}
+			if (resuming) {
+				resuming = false;
+				send("/resume " + resumeToken);
+				return;
+			}
+			send("/setname " + name);
+			if (isPermanent) {
+				send("/setpwd " + password);
+				permanent.add(this);
+			}
+			connected.add(this);
+			nextAction = System.nanoTime() + interval();
+			schedule.add(this);
+		}
+
+		void act() {
+			if (channel.isConnectionPending()) return;
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int choice = random.nextInt(Math.max(1, mix[mix.length - 1]));
+			if (choice < mix[0]) {
+				send(MARKER + System.nanoTime());
+			} else if (choice < mix[1]) {
+				Session target = connected.get(random.nextInt(connected.size()));
+				send("/whisper " + target.name + " " + MARKER + System.nanoTime());
+			} else if (choice < mix[2] && isPermanent) {
+				Session target = permanent.get(random.nextInt(permanent.size()));
+				send("/befriend " + target.name);
+			} else if (choice < mix[3] && isPermanent) {
+				send("/logout");
+				send("/login " + name + " " + password);
+			} else if (choice < mix[4] && resumeToken != null) {
+				reconnect();
+			} else {
+				send(MARKER + System.nanoTime());
+			}
+			sent++;
+		}
+
+		void send(String message) {
+			write(ByteBuffer.wrap(binary ? Frame.command(message).encode() : (message + "\n").getBytes(StandardCharsets.UTF_8)));
+		}
+
+		void write(ByteBuffer buffer) {
+			try {
+				if (pendingWrites.isEmpty()) {
+					channel.write(buffer);
+				}
+				if (buffer.hasRemaining()) {
+					pendingWrites.add(buffer);
+					channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void flush() throws IOException {
+			while (!pendingWrites.isEmpty()) {
+				ByteBuffer buffer = pendingWrites.peek();
+				channel.write(buffer);
+				if (buffer.hasRemaining()) return;
+				pendingWrites.poll();
+			}
+			channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+		}
+
+		void read() throws IOException {
+			readBuffer.clear();
+			int n = channel.read(readBuffer);
+			if (n < 0) {
+				close();
+				return;
+			}
+			int skip = 0;
+			for (; handshakeBytes != 0 && skip < n; skip++) {
+				if (handshakeBytes > 0) handshakeBytes--;
+				else if ((readBuffer.get(skip) & 0xFF) == Frame.MAGIC) handshakeBytes = 2; // the welcome before it is not counted
+			}
+			if (!compress) {
+				received(readBuffer.array(), skip, n - skip);
+				return;
+			}
+
+			inflater.setInput(readBuffer.array(), skip, n - skip);
+			try {
+				int inflatedBytes;
+				while ((inflatedBytes = inflater.inflate(inflated)) > 0 || inflater.needsDictionary()) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(Compression.dictionary());
+					} else {
+						received(inflated, 0, inflatedBytes);
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compressed stream: " + e.getMessage());
+			}
+		}
+
+		void received(byte[] bytes, int offset, int length) throws IOException {
+			if (binary) {
+				decoder.append(bytes, offset, length);
+				try {
+					Frame frame;
+					while ((frame = decoder.next()) != null) {
+						lineReceived(frame.text == null ? "" : frame.text);
+					}
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Protocol error: " + e.getMessage());
+				}
+				return;
+			}
+			for (int i = offset; i < offset + length; i++) {
+				if (bytes[i] == '\n') {
+					lineReceived(new String(line.toByteArray(), StandardCharsets.UTF_8));
+					line.reset();
+				} else {
+					line.write(bytes[i]);
+				}
+			}
+		}
+
+		void lineReceived(String text) {
+			received++;
+			if (text.startsWith("Resume token: ")) {
+				resumeToken = text.substring("Resume token: ".length());
+				return;
+			}
+			int marker = text.indexOf(MARKER);
+			if (marker < 0) return;
+
+			long sendTime = 0;
+			for (int i = marker + MARKER.length(); i < text.length() && Character.isDigit(text.charAt(i)); i++) {
+				sendTime = sendTime * 10 + (text.charAt(i) - '0');
+			}
+			long nanos = System.nanoTime() - sendTime;
+			latency.record(nanos);
+			intervalLatency.record(nanos);
+		}
+
+		// Drops the connection without logging out and takes the session over again on a new one
+		void reconnect() {
+			try {
+				channel.close();
+				if (inflater != null) inflater.end();
+				resuming = true;
+				reconnects++;
+				connect();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void close() {
+			if (!channel.isOpen()) return;
+			if (inflater != null) inflater.end();
+			failed++;
+			connected.remove(this);
+			permanent.remove(this);
+			schedule.remove(this);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private long interval() {
+		return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) / rate * 1e9); // exponential, so sessions don't act in lockstep
+	}
+
+	private void run() throws IOException {
+		System.out.println("Load generator: " + numberOfSessions + " sessions against " + address + " for "
+				+ TimeUnit.NANOSECONDS.toSeconds(duration) + "s at " + rate + " actions/s per session");
+
+		long start = System.nanoTime();
+		long end = start + duration;
+		long nextReport = start + REPORT_INTERVAL;
+		long lastSent = 0, lastReceived = 0;
+
+		while (System.nanoTime() < end) {
+			long now = System.nanoTime();
+
+			long allowed = Math.min(numberOfSessions, (now - start) * connectRate / 1_000_000_000L + 1);
+			while (sessions.size() < allowed) {
+				Session session = new Session(sessions.size());
+				sessions.add(session);
+				try {
+					session.connect();
+				} catch (IOException e) {
+					failed++;
+				}
+			}
+
+			while (!schedule.isEmpty() && schedule.peek().nextAction <= now) {
+				Session session = schedule.poll();
+				session.act();
+				if (session.channel.isOpen()) {
+					session.nextAction = now + interval();
+					schedule.add(session);
+				}
+			}
+
+			long wait = schedule.isEmpty() ? 10 : TimeUnit.NANOSECONDS.toMillis(schedule.peek().nextAction - now);
+			selector.select(Math.max(1, Math.min(wait, 10)));
+			for (SelectionKey key : selector.selectedKeys()) {
+				Session session = (Session) key.attachment();
+				try {
+					if (key.isConnectable()) {
+						session.channel.finishConnect();
+						session.connected();
+					}
+					if (key.isValid() && key.isWritable()) session.flush();
+					if (key.isValid() && key.isReadable()) session.read();
+				} catch (IOException e) {
+					session.close();
+				}
+			}
+			selector.selectedKeys().clear();
+
+			if (now >= nextReport) {
+				double seconds = REPORT_INTERVAL / 1e9;
+				System.out.println(String.format("%4ds  sessions=%d  failed=%d  sent/s=%.0f  received/s=%.0f  latency %s",
+						TimeUnit.NANOSECONDS.toSeconds(now - start), connected.size(), failed,
+						(sent - lastSent) / seconds, (received - lastReceived) / seconds, percentiles(intervalLatency)));
+				intervalLatency.reset();
+				lastSent = sent;
+				lastReceived = received;
+				nextReport += REPORT_INTERVAL;
+			}
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Total: sent=%d (%.0f/s)  received=%d (%.0f/s)  failed sessions=%d  reconnects=%d",
+				sent, sent / seconds, received, received / seconds, failed, reconnects));
+		System.out.println("End-to-end latency: " + percentiles(latency) + "  samples=" + latency.count());
+
+		for (Session session : connected) {
+			session.channel.close();
+		}
+		selector.close();
+	}
+
+	private static String percentiles(LatencyHistogram histogram) {
+		return String.format("p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+				histogram.valueAtQuantile(0.5) / 1e6, histogram.valueAtQuantile(0.9) / 1e6,
+				histogram.valueAtQuantile(0.99) / 1e6, histogram.valueAtQuantile(0.999) / 1e6, histogram.max() / 1e6);
+	}
+}
@@ -1,9 +1,20 @@
 package com.luminis.echochamber.client;
 
+import com.luminis.echochamber.protocol.Frame;
+import com.luminis.echochamber.protocol.FrameDecoder;
+import com.luminis.echochamber.protocol.InflatingInputStream;
+
+import javax.net.ssl.SSLSocketFactory;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 import static java.lang.System.exit;
 
@@ -11,48 +22,137 @@ public class Main {
     static int serverPort = 4444;
 
     public static void main(String[] args) throws Exception {
-		if (args.length != 1) {
+		if (args.length >= 1 && args[0].equals("--load")) {
+			LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		int flags = 0;
+		boolean tls = false;
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("--binary")) flags |= Frame.FLAG_BINARY;
+			else if (args[i].equals("--compress")) flags |= Frame.FLAG_DEFLATE;
+			else if (args[i].equals("--tls")) tls = true;
+			else flags = -1;
+		}
+		if (args.length == 0 || flags < 0) {
 			System.err.println(
-					"Usage: java EchoChamber <host name>");
+					"Usage: java EchoChamber [--binary] [--compress] [--tls] <host name>\n" +
+					"       java EchoChamber --load [host=localhost] [port=4444] [sessions=1000] [duration=60] [rate=1]\n" +
+					"                               [connectRate=200] [permanent=0.2] [mix=<shout>,<whisper>,<befriend>,<login>,<reconnect>]\n" +
+					"                               [protocol=text|binary] [compress=false|true]");
 			System.exit(1);
 		}
 
-		String hostName = args[0];
+		String hostName = args[args.length - 1];
 
 		System.out.println("Client started!");
-		PrintWriter out = null;
-		BufferedReader in = null;
+		Socket socket = null;
 
 		try {
-			Socket socket = new Socket(hostName, serverPort);
-			out = new PrintWriter(socket.getOutputStream(), true);
-			in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream()));
+			// with --tls, a self-signed server certificate must be trusted through -Djavax.net.ssl.trustStore
+			socket = tls ? SSLSocketFactory.getDefault().createSocket(hostName, serverPort) : new Socket(hostName, serverPort);
 		} catch(Exception e) {
 			System.err.println("Error connecting to server.");
 			exit(0);
 		}
 
-		InputReader input = new InputReader(out);
+		InputStream in = socket.getInputStream();
+		if (flags != 0) {
+			in = negotiate(socket, flags);
+		}
+
+		if ((flags & Frame.FLAG_BINARY) != 0) {
+			runBinary(socket, in);
+		} else {
+			runText(socket, in);
+		}
+    }
+
+	// Sends the handshake and returns the stream to read the server's output from. The server writes text until it
+	// answers the handshake, that text is shown as it is.
+	private static InputStream negotiate(Socket socket, int flags) throws Exception {
+		OutputStream out = socket.getOutputStream();
+		InputStream in = socket.getInputStream();
+
+		out.write(Frame.handshake(flags));
+		out.flush();
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0 && b != Frame.MAGIC) {
+			text.write(b);
+		}
+		System.out.print(text.toString("UTF-8"));
+		byte[] versionAndFlags = new byte[2];
+		if (b >= 0) new DataInputStream(in).readFully(versionAndFlags);
+		if (b != Frame.MAGIC || (versionAndFlags[1] & flags) != flags) {
+			System.err.println("Server does not support the requested protocol options.");
+			exit(0);
+		}
+		return (flags & Frame.FLAG_DEFLATE) != 0 ? new InflatingInputStream(in) : in;
+	}
+
+	private static void runText(Socket socket, InputStream inputStream) throws Exception {
+		PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+		BufferedReader in = new BufferedReader(
+				new InputStreamReader(inputStream));
+
+		InputReader input = new InputReader(out::println);
 		String fromServer;
 
 		while ((fromServer = in.readLine()) != null) {
 			System.out.println(fromServer);
 		}
 		input.stop();
-    }
+	}
+
+	private static void runBinary(Socket socket, InputStream in) throws Exception {
+		OutputStream out = socket.getOutputStream();
+
+		InputReader input = new InputReader(line -> {
+			try {
+				out.write(Frame.command(line).encode());
+				out.flush();
+			} catch (Exception e) {
+				System.err.println("Error: can't write to server.");
+				exit(0);
+			}
+		});
 
-	static void inputHandler(String input, PrintWriter out) {
-		out.println(input);
+		FrameDecoder decoder = new FrameDecoder(1 << 20);
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			decoder.append(buffer, 0, read);
+			Frame frame;
+			while ((frame = decoder.next()) != null) {
+				System.out.println(render(frame));
+			}
+		}
+		input.stop();
+	}
+
+	static String render(Frame frame) {
+		switch (frame.type) {
+			case SHOUT:
+				return "[" + frame.channel + "] " + frame.user + "> " + frame.text;
+			case WHISPER:
+				return frame.user + " whispers: " + frame.text;
+			case PRESENCE:
+				return "User " + frame.user + (frame.joined ? " joined" : " left") + " channel [" + frame.channel + "]";
+			case ERROR:
+				return "Error: " + frame.text;
+			default:
+				return frame.text;
+		}
 	}
 }
 
 class InputReader implements Runnable {
 	private BufferedReader stdIn;
 	private boolean stopped = false;
-	private PrintWriter out;
+	private Consumer<String> out;
 
-	InputReader(PrintWriter out) {
+	InputReader(Consumer<String> out) {
 		this.out = out;
 		stdIn = new BufferedReader(new InputStreamReader(System.in));
 		Thread t = new Thread(this);
@@ -65,7 +165,8 @@ class InputReader implements Runnable {
 		while (!stopped) {
 			try {
 				lastInput = stdIn.readLine();
-				Main.inputHandler(lastInput, out);
+				if (lastInput == null) break;
+				out.accept(lastInput);
 			} catch(Exception e) {
 				System.err.println("Error: can't read from keyboard.");
 				exit(0);
@@ -76,4 +177,4 @@ class InputReader implements Runnable {
 	void stop() {
 		stopped = true;
 	}
-}
\ No newline at end of file
+}
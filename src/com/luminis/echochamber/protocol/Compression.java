@@ -0,0 +1,30 @@
+package com.luminis.echochamber.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Negotiated with Frame.FLAG_DEFLATE: everything the server sends after its handshake answer is a zlib stream,
+ * flushed with SYNC_FLUSH after every batch of messages. The stream starts from a preset dictionary of phrases the
+ * server sends all the time, and its window then holds the channel traffic of the last 32 KB, so repeated names and
+ * phrases in a busy channel cost a few bytes each.
+ */
+public class Compression {
+	static final byte[] DICTIONARY = String.join("\n",
+			"--------------------------------------------------",
+			"Welcome to the EchoChamber chat server!",
+			"Use /help or /help <command> for more information.",
+			"Available commands: ",
+			"You are now logged in as ",
+			"Login successful. Last login: ",
+			"You whispered a message to ",
+			" whispers: ",
+			"User \033[33m",
+			"\033[0m joined channel [Default]",
+			"\033[0m left channel [Default]",
+			"\033[0m> "
+	).getBytes(StandardCharsets.UTF_8);
+
+	public static byte[] dictionary() {
+		return DICTIONARY.clone();
+	}
+}
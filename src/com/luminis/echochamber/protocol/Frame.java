@@ -0,0 +1,161 @@
+package com.luminis.echochamber.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message in the binary protocol. On the wire a frame is a varint length followed by that many bytes: one type byte
+ * and the fields of that type. Strings are a varint byte count followed by UTF-8.
+ *
+ * A client selects the binary protocol by sending the handshake bytes MAGIC, VERSION, flags right after connecting;
+ * the server answers with the same three bytes carrying the flags it accepted. A handshake without FLAG_BINARY keeps the
+ * text protocol but can still enable other flags. The server does not wait for a handshake: it writes text, starting
+ * with the welcome, until it answers one, so a client skips to the MAGIC byte. MAGIC is a byte that never occurs in
+ * UTF-8 (0xF5 to 0xFF are not used), so neither side can mistake text for the handshake.
+ */
+public final class Frame {
+	public static final int MAGIC = 0xF5;
+	public static final int VERSION = 1;
+	public static final int FLAG_BINARY = 1;
+	public static final int FLAG_DEFLATE = 2; // server to client output is compressed, see Compression
+
+	public final FrameType type;
+	public final String channel; // SHOUT, PRESENCE
+	public final String user; // sender of SHOUT and WHISPER, subject of PRESENCE
+	public final String text; // everything except PRESENCE
+	public final boolean joined; // PRESENCE
+
+	private Frame(FrameType type, String channel, String user, String text, boolean joined) {
+		this.type = type;
+		this.channel = channel;
+		this.user = user;
+		this.text = text;
+		this.joined = joined;
+	}
+
+	public static Frame command(String text) {
+		return new Frame(FrameType.COMMAND, null, null, text, false);
+	}
+
+	public static Frame reply(String text) {
+		return new Frame(FrameType.REPLY, null, null, text, false);
+	}
+
+	public static Frame error(String text) {
+		return new Frame(FrameType.ERROR, null, null, text, false);
+	}
+
+	public static Frame system(String text) {
+		return new Frame(FrameType.SYSTEM, null, null, text, false);
+	}
+
+	public static Frame shout(String channel, String sender, String text) {
+		return new Frame(FrameType.SHOUT, channel, sender, text, false);
+	}
+
+	public static Frame whisper(String sender, String text) {
+		return new Frame(FrameType.WHISPER, null, sender, text, false);
+	}
+
+	public static Frame presence(String channel, String user, boolean joined) {
+		return new Frame(FrameType.PRESENCE, channel, user, null, joined);
+	}
+
+	public static byte[] handshake(int flags) {
+		return new byte[] {(byte) MAGIC, (byte) VERSION, (byte) flags};
+	}
+
+	public byte[] encode() {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(16 + (text == null ? 0 : text.length()));
+		body.write(type.code);
+		switch (type) {
+			case SHOUT:
+				writeString(body, channel);
+				writeString(body, user);
+				writeString(body, text);
+				break;
+			case WHISPER:
+				writeString(body, user);
+				writeString(body, text);
+				break;
+			case PRESENCE:
+				writeString(body, channel);
+				writeString(body, user);
+				body.write(joined ? 1 : 0);
+				break;
+			default:
+				writeString(body, text);
+		}
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 5);
+		writeVarint(frame, body.size());
+		byte[] bytes = body.toByteArray();
+		frame.write(bytes, 0, bytes.length);
+		return frame.toByteArray();
+	}
+
+	// Decodes the body of a frame, i.e. everything after the length prefix
+	static Frame decode(byte[] buffer, int offset, int length) {
+		Cursor cursor = new Cursor(buffer, offset, offset + length);
+		FrameType type = FrameType.of(cursor.readByte());
+		if (type == null) throw new IllegalArgumentException("Unknown frame type");
+		switch (type) {
+			case SHOUT:
+				return shout(cursor.readString(), cursor.readString(), cursor.readString());
+			case WHISPER:
+				return whisper(cursor.readString(), cursor.readString());
+			case PRESENCE:
+				return presence(cursor.readString(), cursor.readString(), cursor.readByte() != 0);
+			default:
+				return new Frame(type, null, null, cursor.readString(), false);
+		}
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static class Cursor {
+		private final byte[] buffer;
+		private int position;
+		private final int end;
+
+		Cursor(byte[] buffer, int position, int end) {
+			this.buffer = buffer;
+			this.position = position;
+			this.end = end;
+		}
+
+		int readByte() {
+			if (position >= end) throw new IllegalArgumentException("Truncated frame");
+			return buffer[position++] & 0xFF;
+		}
+
+		int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = readByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return value;
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+
+		String readString() {
+			int length = readVarint();
+			if (length < 0 || position + length > end) throw new IllegalArgumentException("Truncated frame");
+			String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return string;
+		}
+	}
+}
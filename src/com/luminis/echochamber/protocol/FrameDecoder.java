@@ -0,0 +1,51 @@
+package com.luminis.echochamber.protocol;
+
+/**
+ * Incremental frame decoder. Bytes are appended as they arrive; complete frames are taken out in order.
+ */
+public class FrameDecoder {
+	private final int maxFrameLength;
+	private byte[] buffer = new byte[512];
+	private int start = 0, end = 0;
+
+	public FrameDecoder(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	public void append(byte[] bytes, int offset, int length) {
+		if (end + length > buffer.length) {
+			int remaining = end - start;
+			if (remaining + length > buffer.length) {
+				byte[] larger = new byte[Math.max(buffer.length * 2, remaining + length)];
+				System.arraycopy(buffer, start, larger, 0, remaining);
+				buffer = larger;
+			} else {
+				System.arraycopy(buffer, start, buffer, 0, remaining);
+			}
+			start = 0;
+			end = remaining;
+		}
+		System.arraycopy(bytes, offset, buffer, end, length);
+		end += length;
+	}
+
+	// Returns the next complete frame, or null if more bytes are needed
+	public Frame next() {
+		int length = 0;
+		int position = start;
+		for (int shift = 0; ; shift += 7) {
+			if (position >= end) return null;
+			if (shift > 28) throw new IllegalArgumentException("Malformed frame length");
+			int b = buffer[position++] & 0xFF;
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) break;
+		}
+		if (length <= 0 || length > maxFrameLength) throw new IllegalArgumentException("Invalid frame length " + length);
+		if (end - position < length) return null;
+
+		Frame frame = Frame.decode(buffer, position, length);
+		start = position + length;
+		if (start == end) start = end = 0;
+		return frame;
+	}
+}
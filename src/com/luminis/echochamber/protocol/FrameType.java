@@ -0,0 +1,25 @@
+package com.luminis.echochamber.protocol;
+
+public enum FrameType {
+	COMMAND		(1), // client to server: one line of input, as typed in the text protocol
+	REPLY		(2), // answer to a command
+	ERROR		(3), // a command failed
+	SYSTEM		(4), // server notices: welcome, warnings, shutdown
+	SHOUT		(5), // channel message
+	WHISPER		(6), // private message
+	PRESENCE	(7); // a user joined or left a channel
+
+	final int code;
+	FrameType(int code) {
+		this.code = code;
+	}
+
+	private static final FrameType[] byCode = new FrameType[8];
+	static {
+		for (FrameType type : values()) byCode[type.code] = type;
+	}
+
+	static FrameType of(int code) {
+		return code > 0 && code < byCode.length ? byCode[code] : null;
+	}
+}
@@ -0,0 +1,64 @@
+package com.luminis.echochamber.protocol;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a stream produced with the Compression preset dictionary. Unlike InflaterInputStream it supplies the
+ * dictionary when the stream asks for it, and it returns data as soon as a sync flush makes it available.
+ */
+public class InflatingInputStream extends FilterInputStream {
+	private final Inflater inflater = new Inflater();
+	private final byte[] input = new byte[8192];
+	private final byte[] single = new byte[1];
+
+	public InflatingInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		try {
+			while (true) {
+				int n = inflater.inflate(buffer, offset, length);
+				if (n > 0) return n;
+				if (inflater.finished()) {
+					return -1;
+				} else if (inflater.needsDictionary()) {
+					inflater.setDictionary(Compression.DICTIONARY);
+				} else if (inflater.needsInput()) {
+					int read = in.read(input);
+					if (read < 0) return -1;
+					inflater.setInput(input, 0, read);
+				} else {
+					throw new IOException("Compressed stream makes no progress");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed stream: " + e.getMessage());
+		} catch (IllegalArgumentException e) { // from setDictionary, when the stream wants another dictionary
+			throw new IOException("Compressed stream with an unknown dictionary");
+		}
+	}
+
+	// Decompressed bytes that are ready cannot be counted without inflating them, so only report what is buffered
+	@Override
+	public int available() throws IOException {
+		return inflater.getRemaining() > 0 ? 1 : in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		super.close();
+	}
+}
@@ -1,47 +1,54 @@
 package com.luminis.echochamber.server;
 
 import java.io.Serializable;
-import java.util.Date;
+import java.security.MessageDigest;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
+// Kept compact, as there can be millions: the id as two longs, epoch milliseconds instead of Dates, raw salt and
+// hash bytes and no Relations until the first friend request.
 class Account implements Serializable {
-	private final UUID id;
-	final Date creationDate;
+	final long idHigh, idLow;
+	final long creationTime;
 	transient Client currentClient;
 
 	private String username;
-	private String salt;
-	private String passwordHash;
+	byte[] salt;
+	byte[] passwordHash;
 
 	private boolean permanent;
-	transient private boolean online;
-	Date lastLoginDate;
-	Relations relations;
+	transient private String description; // toString() is logged on every login and channel change
+	long lastLoginTime; // 0 if never logged in
+	volatile Relations relations;
+	private static final AtomicReferenceFieldUpdater<Account, Relations> relationsUpdater = AtomicReferenceFieldUpdater.newUpdater(Account.class, Relations.class, "relations");
+
+	transient AccountCollection owner; // set while the account is kept in an account table, which receives every change
+	transient int record;
+
+	private static final Metrics.Histogram passwordCheckDuration = Metrics.histogram("account_password_check_duration_nanoseconds", "Time to verify a password");
 
 	Account(String username, byte[] pwd) {
 		if (pwd != null) {
-			byte[] byteSalt = Security.getNewSalt();
-			salt = Security.byteArrayToHexString(byteSalt);
-			passwordHash = Security.byteArrayToHexString(Security.calculateHash(Security.saltPassword(byteSalt, pwd)));
+			salt = Security.getNewSalt();
+			passwordHash = Security.calculateHash(Security.saltPassword(salt, pwd));
 			permanent = true;
-			relations = new Relations(this);
 		} else {
 			salt = null;
 			passwordHash = null;
 			permanent = false;
 		}
 
-		id = Security.createUUID();
+		UUID id = Security.createUUID();
+		idHigh = id.getMostSignificantBits();
+		idLow = id.getLeastSignificantBits();
 
 		this.username = username;
-		creationDate = new Date();
+		creationTime = System.currentTimeMillis();
 		currentClient = null;
-
-		online = false;
-		lastLoginDate = null;
+		lastLoginTime = 0;
 
 		if (username != null) {
-			Main.logger.info("Created " + (permanent ? "persistent" : "temporary") + " account " + this);
+			Main.logger.info("Created {} account {}", permanent ? "persistent" : "temporary", this);
 		}
 	}
 
@@ -49,18 +56,45 @@ class Account implements Serializable {
 		this(username, null);
 	}
 
+	// A permanent account read back from an account table
+	Account(String username, long idHigh, long idLow, long creationTime, long lastLoginTime, byte[] salt, byte[] passwordHash) {
+		this.username = username;
+		this.idHigh = idHigh;
+		this.idLow = idLow;
+		this.creationTime = creationTime;
+		this.lastLoginTime = lastLoginTime;
+		this.salt = salt;
+		this.passwordHash = passwordHash;
+		permanent = true;
+	}
+
+	// A detached copy of a permanent account, without relations, or null if it is not permanent or was deleted
+	synchronized Account copy() {
+		if (!permanent || username == null) return null;
+		return new Account(username, idHigh, idLow, creationTime, lastLoginTime, salt, passwordHash);
+	}
+
+	void bind(AccountCollection owner, int record) {
+		this.owner = owner;
+		this.record = record;
+	}
+
 	@Override
 	public String toString() {
-		return id.toString() + "[" + username + "]";
+		if (description == null) {
+			description = new UUID(idHigh, idLow) + "[" + username + "]";
+		}
+		return description;
 	}
 
 	synchronized void delete() {
-		Main.logger.info("Deleted " + (permanent ? "persistent" : "temporary") + " account " + this);
+		Main.logger.info("Deleted {} account {}", permanent ? "persistent" : "temporary", this);
 
 		username = null;
+		description = null;
 		salt = null;
 		passwordHash = null;
-		if (permanent) relations.clear();
+		if (relations != null) relations.clear();
 	}
 
 	String username() {
@@ -70,54 +104,78 @@ class Account implements Serializable {
 	synchronized void login(Client client){
 		if(currentClient == null) {
 			currentClient = client;
-			online = true;
-			lastLoginDate = new Date();
+			lastLoginTime = System.currentTimeMillis();
+			if (permanent) AccountCollection.changed(); // temporary accounts are not saved
+			if (owner != null) owner.updated(this);
 		}
 	}
 
-	synchronized void logout() {
-		currentClient = null;
-		online = false;
+	// Only by the client that has the account, so a session that lost the account to a new login leaves it alone
+	synchronized void logout(Client client) {
+		if (currentClient == client) currentClient = null;
 	}
 
 	boolean checkPassword(byte[] pwd) {
-		byte[] hashedPassword = Security.calculateHash(Security.saltPassword(Security.hexStringToByteArray(salt), pwd));
-		byte[] storedPasswordHash = Security.hexStringToByteArray(passwordHash);
-		boolean passwordMatch = passwordHash != null && hashedPassword.length == storedPasswordHash.length;
-		for(int i=0; i < hashedPassword.length; i++) {
-			passwordMatch = passwordMatch && (hashedPassword[i] == storedPasswordHash[i]);
-		}
-		Main.logger.info((passwordMatch?"SUCCESSFUL":"FAILED") + " authentication attempt for account " + this);
+		long start = System.nanoTime();
+		byte[] storedSalt = salt, storedPasswordHash = passwordHash; // either may be cleared by delete()
+		boolean passwordMatch = storedSalt != null && storedPasswordHash != null
+				&& MessageDigest.isEqual(Security.calculateHash(Security.saltPassword(storedSalt, pwd)), storedPasswordHash);
+		passwordCheckDuration.recordSince(start);
+		Main.logger.info("{} authentication attempt for account {}", passwordMatch ? "SUCCESSFUL" : "FAILED", this);
 		return passwordMatch;
 	}
 
 	synchronized void addRelation(Account account) {
 		if (account.permanent && this.permanent) {
-			relations.add(account);
+			relations().add(account);
 		}
 	}
 
 	synchronized void removeRelation(Account account) {
-		if (account.permanent && this.permanent) {
+		if (account.permanent && this.permanent && relations != null) {
 			relations.remove(account);
 		}
 	}
 
-	synchronized void makePermanent(byte[] pwd) {
+	// Most accounts never have a relation, so the Relations object is only allocated when needed, or read back from
+	// the account table. Not synchronized on the account, as Relations reaches into the other account while holding
+	// its own locks.
+	Relations relations() {
+		Relations current = relations;
+		if (current == null) {
+			AccountCollection owner = this.owner;
+			Relations created = owner != null ? owner.loadRelations(this) : new Relations(this);
+			current = relationsUpdater.compareAndSet(this, null, created) ? created : relations;
+		}
+		return current;
+	}
+
+	String relationsDescription() {
+		Relations relations = owner != null ? relations() : this.relations; // not loaded from the table yet
+		return relations == null ? "\tnone" : relations.toString();
+	}
+
+	void relationsChanged() {
+		AccountCollection owner = this.owner;
+		if (owner != null) owner.relationsChanged(this);
+	}
+
+	// The hash is calculated by the caller, off the shard
+	synchronized void makePermanent(byte[] salt, byte[] passwordHash) {
 		if (!permanent) {
-			byte[] byteSalt = Security.getNewSalt();
-			salt = Security.byteArrayToHexString(byteSalt);
-			passwordHash = Security.byteArrayToHexString(Security.calculateHash(Security.saltPassword(byteSalt, pwd)));
+			this.salt = salt;
+			this.passwordHash = passwordHash;
 			permanent = true;
-			relations = new Relations(this);
+			AccountCollection.changed();
+			if (owner != null) owner.madePermanent(this);
 
-			Main.logger.info("Changed transient account " + this + " to permanent");
+			Main.logger.info("Changed transient account {} to permanent", this);
 		}
-		else Main.logger.warn("Account " + this + " is already a permanent account");
+		else Main.logger.warn("Account {} is already a permanent account", this);
 	}
 
 	boolean isOnline() {
-		return online;
+		return currentClient != null;
 	}
 
 	boolean isPermanent() {
@@ -126,6 +184,6 @@ class Account implements Serializable {
 
 	String infoString() {
 		return "Name: " + this.username() + ", Type: " + (permanent ? "Permanent" : "Transient") + ", Status: "
-				+ (online ? "Online" : "Offline") + ", Current channel: " + (currentClient == null ? "none" : currentClient.connectedChannel);
+				+ (isOnline() ? "Online" : "Offline") + ", Current channel: " + (currentClient == null ? "none" : currentClient.connectedChannel);
 	}
 }
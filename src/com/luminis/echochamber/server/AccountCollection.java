@@ -1,16 +1,74 @@
 package com.luminis.echochamber.server;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 public class AccountCollection extends ArrayList<Account> {
+	// With an account table, permanent accounts live off-heap and this list only holds temporary ones. Permanent
+	// accounts are materialized on lookup, and at most one instance exists per record. The most recently used ones are
+	// kept in a bounded cache, others stay on the heap only while something refers to them: an online client, or the
+	// set of changed accounts waiting for the next flush to the table.
+	transient private MappedAccountTable table;
+	transient private Map<Integer, MaterializedAccount> materialized;
+	transient private ReferenceQueue<Account> collected;
+	transient private Map<Integer, Account> cache;
+	transient private Set<Account> changed, relationsChanged;
+	transient private volatile List<Account> snapshot; // dropped on every change, rebuilt by the next reader
+
+	private static final AtomicLong changes = new AtomicLong(); // to permanent accounts and their relations, to see if a save is due
+	private static final Metrics.Counter cacheHits = Metrics.counter("account_cache_hits_total", "Account lookups served from the heap");
+	private static final Metrics.Counter cacheMisses = Metrics.counter("account_cache_misses_total", "Accounts loaded from the account table");
+	private static final Metrics.Histogram flushDuration = Metrics.histogram("account_flush_duration_nanoseconds", "Time to write changed accounts to the account table");
+
+	private static class MaterializedAccount extends WeakReference<Account> {
+		final int record;
+
+		MaterializedAccount(Account account, int record, ReferenceQueue<Account> queue) {
+			super(account, queue);
+			this.record = record;
+		}
+	}
+
+	public AccountCollection() {
+	}
+
+	AccountCollection(MappedAccountTable table) {
+		this.table = table;
+		materialized = new HashMap<>();
+		collected = new ReferenceQueue<>();
+		cache = new LinkedHashMap<Integer, Account>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Account> eldest) {
+				return size() > Settings.accountCacheSize;
+			}
+		};
+		changed = new HashSet<>();
+		relationsChanged = new HashSet<>();
+		Metrics.gauge("accounts_materialized", "Permanent accounts on the heap", () -> materialized.size());
+		Metrics.gauge("accounts_unflushed", "Changed accounts not yet written to the account table", () -> changed.size() + relationsChanged.size());
+	}
+
 	synchronized public Account getAccountByName(String username) {
 		for (Account account : this) {
 			if (account.username().equals(username)) {
 				return account;
 			}
 		}
+		if (table != null) {
+			int record = table.find(username);
+			if (record >= 0) return materialize(record);
+		}
 		return null;
 	}
 
@@ -19,24 +77,212 @@ public class AccountCollection extends ArrayList<Account> {
 		if (account == null) { return false ;}
 		else {
 			String username = account.username();
-			if (getUsernames().contains(username)) { return false; }
+			if (exists(username)) { return false; }
+			else if (table != null && account.isPermanent()) {
+				return insert(account);
+			}
 			else {
 				super.add(account);
+				snapshot = null;
+				if (account.isPermanent()) changed();
+				if (table != null) account.bind(this, -1);
 				return true;
 			}
 		}
 	}
 
+	@Override
+	synchronized public boolean remove(Object o) {
+		if (table != null && o instanceof Account && ((Account) o).owner == this && ((Account) o).record >= 0) {
+			Account account = (Account) o;
+			account.relations(); // so that deleting the account can still reach the other side of its relations
+			table.delete(account.record);
+			materialized.remove(account.record);
+			cache.remove(account.record);
+			changed.remove(account);
+			relationsChanged.remove(account);
+			account.bind(null, -1);
+			changed();
+			return true;
+		}
+		if (!super.remove(o)) return false;
+		snapshot = null;
+		if (o instanceof Account && ((Account) o).isPermanent()) changed();
+		return true;
+	}
+
 	synchronized public boolean removeByName(String username) {
 		Account account = getAccountByName(username);
 		return remove(account);
 	}
 
-	synchronized public List<String> getUsernames() {
-		return this.stream().map(Account::username).collect(Collectors.toList());
+	public List<String> getUsernames() {
+		return getAccounts().stream().map(Account::username).collect(Collectors.toList());
 	}
 
-	synchronized public List<Account> getAccounts() {
-		return this;
+	static void changed() {
+		changes.incrementAndGet();
+	}
+
+	// Number of changes since the server started
+	static long changes() {
+		return changes.get();
+	}
+
+	// An immutable snapshot, that can be iterated without locks while the collection changes. On the heap it is only
+	// copied for the first reader after a change, so taking it is O(1) while nothing changes. With an account table it
+	// is a fresh copy every time, as keeping one would keep every permanent account on the heap.
+	public List<Account> getAccounts() {
+		List<Account> current = snapshot;
+		if (current != null) return current;
+		synchronized (this) {
+			if (snapshot != null) return snapshot;
+			List<Account> accounts = new ArrayList<>(this);
+			if (table != null) {
+				table.forEach(record -> accounts.add(materialize(record)));
+				return Collections.unmodifiableList(accounts);
+			}
+			snapshot = Collections.unmodifiableList(accounts);
+			return snapshot;
+		}
+	}
+
+	// Copies of the permanent accounts and their relations, detached from the live ones, so they can be written out
+	// while the server keeps running, without locking it. Every account and every relation list is copied consistently
+	// on its own. A relation that was changing during the copy, and so made it to one side only, is left out: the copy
+	// always has both sides of a relation, and the next save picks up the change.
+	AccountCollection permanentSnapshot() {
+		Map<Account, Account> copies = new IdentityHashMap<>();
+		for (Account account : getAccounts()) {
+			Account copy = account.copy();
+			if (copy != null) copies.put(account, copy);
+		}
+		for (Map.Entry<Account, Account> entry : copies.entrySet()) {
+			Relations relations = entry.getKey().relations;
+			if (relations != null) entry.getValue().relations = relations.copy(entry.getValue(), copies);
+		}
+		for (Account copy : copies.values()) {
+			if (copy.relations != null) copy.relations.dropOneSided();
+		}
+		AccountCollection snapshot = new AccountCollection();
+		snapshot.addAll(copies.values()); // unchecked, the names are unique already
+		return snapshot;
+	}
+
+	synchronized int numberOfAccounts() {
+		return table == null ? size() : size() + table.size();
+	}
+
+	boolean isMapped() {
+		return table != null;
+	}
+
+	// Whether an account with this name can be made permanent, the account table limits the length of names
+	boolean canStore(String username) {
+		return table == null || MappedAccountTable.fits(username);
+	}
+
+	// Writes changed accounts to the table. Runs periodically and on shutdown, so a crash loses at most the changes
+	// since the last flush.
+	synchronized void flush() {
+		if (changed.isEmpty() && relationsChanged.isEmpty()) return;
+		long start = System.nanoTime();
+		for (Account account : changed) {
+			if (account.owner == this && account.record >= 0) table.update(account.record, account);
+		}
+		for (Account account : relationsChanged) {
+			Relations relations = account.relations;
+			if (account.owner == this && account.record >= 0 && relations != null) {
+				int[][] records = relations.records();
+				table.writeRelations(account.record, records[0], records[1], records[2]);
+			}
+		}
+		changed.clear();
+		relationsChanged.clear();
+		flushDuration.recordSince(start);
+	}
+
+	synchronized void closeTable() {
+		flush();
+		try {
+			table.close();
+		} catch (java.io.IOException e) {
+			Main.logger.error("Cannot close account table: {}", e.getMessage());
+		}
+	}
+
+	// Called by bound accounts after they changed. Holding on to them until the next flush also keeps them loaded.
+	synchronized void updated(Account account) {
+		if (account.record >= 0) changed.add(account);
+	}
+
+	synchronized void madePermanent(Account account) {
+		super.remove(account);
+		snapshot = null;
+		if (!insert(account)) super.add(account); // stays usable, but is not stored
+	}
+
+	synchronized void relationsChanged(Account account) {
+		if (account.record >= 0) relationsChanged.add(account);
+	}
+
+	synchronized Relations loadRelations(Account account) {
+		if (account.record < 0) return new Relations(account);
+		return new Relations(account,
+				materialize(table.relations(account.record, MappedAccountTable.FRIEND)),
+				materialize(table.relations(account.record, MappedAccountTable.SENT)),
+				materialize(table.relations(account.record, MappedAccountTable.RECEIVED)));
+	}
+
+	private boolean exists(String username) {
+		for (Account account : this) {
+			if (account.username().equals(username)) return true;
+		}
+		return table != null && table.find(username) >= 0;
+	}
+
+	private boolean insert(Account account) {
+		int record;
+		try {
+			record = table.insert(account);
+		} catch (IllegalArgumentException e) {
+			Main.logger.warn("Cannot store account {}: {}", account, e.getMessage());
+			return false;
+		}
+		account.bind(this, record);
+		materialized.put(record, new MaterializedAccount(account, record, collected));
+		cache.put(record, account);
+		return true;
+	}
+
+	private List<Account> materialize(int[] records) {
+		List<Account> accounts = new ArrayList<>(records.length);
+		for (int record : records) {
+			accounts.add(materialize(record));
+		}
+		return accounts;
+	}
+
+	private Account materialize(int record) {
+		Account account = cache.get(record);
+		if (account != null) {
+			cacheHits.increment();
+			return account;
+		}
+		for (MaterializedAccount stale; (stale = (MaterializedAccount) collected.poll()) != null; ) {
+			materialized.remove(stale.record, stale);
+		}
+		MaterializedAccount reference = materialized.get(record);
+		account = reference == null ? null : reference.get();
+		if (account != null) {
+			cacheHits.increment(); // evicted from the cache, but still in use
+		} else {
+			cacheMisses.increment();
+			account = table.load(record);
+			account.bind(this, record);
+			materialized.put(record, new MaterializedAccount(account, record, collected));
+		}
+		cache.put(record, account);
+		return account;
 	}
 }
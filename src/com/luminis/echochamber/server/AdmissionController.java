@@ -0,0 +1,148 @@
+package com.luminis.echochamber.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+enum Admission {
+	ACCEPTED		(null),
+	SERVER_FULL		("Too many connections. Closing connection"),
+	ADDRESS_LIMIT	("Too many connections from your address. Closing connection"),
+	RATE_LIMITED	("Server busy, try again later. Closing connection");
+
+	final String reason;
+	Admission(String reason) {
+		this.reason = reason;
+	}
+}
+
+/**
+ * Decides which incoming connections are let in. Enforces a global connection limit, a limit per remote address and a
+ * token bucket on the accept rate. Rejected sockets are answered and closed on a separate thread, so a flood of
+ * connections never stalls the accept loop.
+ */
+class AdmissionController {
+	private final int maxConnections;
+	private final int maxConnectionsPerAddress;
+	private final int acceptRate;
+	private final int acceptBurst;
+
+	private final AtomicInteger connections = new AtomicInteger();
+	private final ConcurrentHashMap<InetAddress, Integer> connectionsPerAddress = new ConcurrentHashMap<>();
+
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	private final Metrics.Counter accepted = Metrics.counter("connections_accepted_total", "Connections admitted to the server");
+	private final Metrics.Counter rejected = Metrics.counter("connections_rejected_total", "Connections refused by admission control");
+	private final AtomicInteger queued = new AtomicInteger(); // rejections waiting to be answered
+
+	private final ThreadPoolExecutor rejector;
+
+	AdmissionController(int maxConnections, int maxConnectionsPerAddress, int acceptRate, int acceptBurst, int rejectionQueueSize) {
+		this.maxConnections = maxConnections;
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+		this.acceptRate = acceptRate;
+		this.acceptBurst = acceptBurst;
+		tokens = acceptBurst;
+		Metrics.gauge("connections_queued", "Rejected connections waiting to be answered", queued::get);
+		Metrics.gauge("connections_open", "Currently admitted connections", connections::get);
+
+		rejector = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(rejectionQueueSize), runnable -> {
+			Thread thread = new Thread(runnable, "Rejector");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	AdmissionController() {
+		this(Settings.maxConnections, Settings.maxConnectionsPerAddress, Settings.acceptRate, Settings.acceptBurst, Settings.rejectionQueueSize);
+	}
+
+	int maxConnections() {
+		return maxConnections;
+	}
+
+	int numberOfConnections() {
+		return connections.get();
+	}
+
+	Admission admit(InetAddress address) {
+		if (!acquireToken()) {
+			return Admission.RATE_LIMITED;
+		}
+		if (connections.incrementAndGet() > maxConnections) {
+			connections.decrementAndGet();
+			return Admission.SERVER_FULL;
+		}
+		// counted inside the map's atomic update, so a concurrent release cannot remove the entry in between
+		int count = connectionsPerAddress.merge(address, 1, Integer::sum);
+		if (count > maxConnectionsPerAddress) {
+			release(address);
+			return Admission.ADDRESS_LIMIT;
+		}
+		accepted.increment();
+		return Admission.ACCEPTED;
+	}
+
+	void release(InetAddress address) {
+		connections.decrementAndGet();
+		connectionsPerAddress.computeIfPresent(address, (a, count) -> count > 1 ? count - 1 : null);
+	}
+
+	void reject(Socket socket, Admission admission) {
+		rejected.increment();
+		queued.incrementAndGet();
+		try {
+			rejector.execute(() -> {
+				queued.decrementAndGet();
+				try {
+					socket.setSoTimeout(1000); // a TLS socket handshakes first, don't let it hold up the other rejections
+					PrintWriter toRemote = new PrintWriter(socket.getOutputStream(), true);
+					toRemote.println(admission.reason);
+					toRemote.close();
+				} catch (IOException e) {
+					// client is gone already, nothing to tell
+				}
+				close(socket);
+			});
+		} catch (RejectedExecutionException e) { // even the rejection queue is full: drop the connection without an answer
+			queued.decrementAndGet();
+			close(socket);
+		}
+		Main.logger.warn("Rejected connection from {}: {}", socket.getInetAddress(), admission);
+	}
+
+	void shutdown() {
+		rejector.shutdown();
+	}
+
+	String statistics() {
+		return "accepted: " + accepted.get() + ", rejected: " + rejected.get() + ", queued: " + queued.get()
+				+ ", connected: " + connections.get() + " of " + maxConnections;
+	}
+
+	synchronized private boolean acquireToken() {
+		if (acceptRate <= 0) return true;
+
+		long now = System.nanoTime();
+		tokens = Math.min(acceptBurst, tokens + (now - lastRefill) * acceptRate / 1e9);
+		lastRefill = now;
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.luminis.echochamber.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Progress of a server-wide broadcast. Every shard reports once it delivered the message to all of its sessions.
+class Announcement {
+	private final long start = System.nanoTime();
+	private final int shards;
+	private final AtomicInteger shardsDone = new AtomicInteger();
+	private final AtomicInteger recipients = new AtomicInteger();
+	private final AtomicLong slowestShard = new AtomicLong();
+	private final CompletableFuture<Announcement> completion = new CompletableFuture<>();
+	private volatile long duration;
+
+	private static final Metrics.Histogram announcementDuration = Metrics.histogram("announcement_duration_nanoseconds", "Time for an announcement to reach every session");
+	private static final Metrics.Histogram announcementRecipients = Metrics.histogram("announcement_recipients", "Number of sessions reached per announcement");
+
+	Announcement(int shards) {
+		this.shards = shards;
+	}
+
+	void shardDone(int delivered) {
+		long elapsed = System.nanoTime() - start;
+		recipients.addAndGet(delivered);
+		slowestShard.accumulateAndGet(elapsed, Math::max);
+		if (shardsDone.incrementAndGet() == shards) {
+			duration = slowestShard.get(); // every shard recorded its time before counting itself done
+			announcementDuration.record(duration);
+			announcementRecipients.record(recipients.get());
+			completion.complete(this);
+		}
+	}
+
+	// Returns false if not all shards were done in time
+	boolean await(long millis) {
+		try {
+			completion.get(millis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException | ExecutionException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	String progress() {
+		return shardsDone.get() + " of " + shards + " shards done, " + recipients.get() + " sessions reached after "
+				+ millis(System.nanoTime() - start);
+	}
+
+	@Override
+	public String toString() {
+		return "reached " + recipients.get() + " sessions on " + shards + " shards in " + millis(duration);
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.1f ms", nanos / 1e6);
+	}
+}
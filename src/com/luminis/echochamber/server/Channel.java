@@ -1,14 +1,50 @@
 package com.luminis.echochamber.server;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 class Channel {
-	private volatile ArrayList<Client> connectedClients;
+	static final int MAX_NAME_LENGTH = 32;
+	private static final Pattern validName = Pattern.compile("[A-Za-z0-9_-]{1," + MAX_NAME_LENGTH + "}");
+
+	// Members are split by shard. A slice is only changed on its shard's thread, and a broadcast is handed to every
+	// shard that has members, which delivers it to its own slice. Copy-on-write, so other threads can still list them.
+	private final List<Client>[] members;
 	private String name;
+	int holders; // clients in the channel, only changed by Server.join and Server.leave
+
+	// With a batch window, messages are collected for that long, or until there are channelBatchMessages of them, and
+	// every member gets them as one queued message and one write. Batches are only delivered by the batcher thread, so
+	// they stay in order.
+	private final int batchWindow;
+	private final Queue<Message> batch = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger batched = new AtomicInteger();
+	private static final ScheduledExecutorService batcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Channel batches");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final Metrics.Histogram fanOut = Metrics.histogram("channel_broadcast_recipients", "Number of recipients per channel broadcast");
+	private static final Metrics.Histogram batchSize = Metrics.histogram("channel_batch_messages", "Number of messages per delivered channel batch");
+	private static final Metrics.Histogram broadcastDuration = Metrics.histogram("channel_broadcast_duration_nanoseconds", "Time to hand a broadcast to the shards of all channel members");
 
+	@SuppressWarnings({"unchecked", "rawtypes"})
 	Channel(String channelName) {
-		connectedClients = new ArrayList<>();
+		members = new List[Settings.shards];
+		for (int i = 0; i < members.length; i++) {
+			members[i] = new CopyOnWriteArrayList<>();
+		}
 		name = channelName;
+		batchWindow = Settings.channelBatchWindow(channelName);
 	}
 
 	@Override
@@ -16,43 +52,87 @@ class Channel {
 		return "[" + name + "]";
 	}
 
-	synchronized void subscribe(Client client) {
-		if (!connectedClients.contains(client)) {
-			connectedClients.add(client);
-			broadcast("User " + TextColors.colorUserName(client.connectedAccount.username()) + " joined channel " + this);
-		}
+	String name() {
+		return name;
 	}
 
-	synchronized void unSubscribe(Client client) {
-		if (connectedClients.contains(client)) {
-			if (client.connectedAccount != null ) broadcast("User " + TextColors.colorUserName(client.connectedAccount.username()) + " left channel " + this);
-			connectedClients.remove(client);
-		}
+	static boolean isValidName(String name) {
+		return validName.matcher(name).matches();
+	}
+
+	void subscribe(Client client) {
+		Message joined = Message.presence(this, client.connectedAccount.username(), true);
+		client.shard.dispatch(() -> {
+			List<Client> slice = members[client.shard.index];
+			if (!slice.contains(client)) {
+				slice.add(client);
+				publish(joined);
+			}
+		});
+	}
+
+	void unSubscribe(Client client) {
+		Message left = client.connectedAccount == null ? null : Message.presence(this, client.connectedAccount.username(), false);
+		client.shard.dispatch(() -> {
+			if (members[client.shard.index].remove(client) && left != null) publish(left);
+		});
 	}
 
-	synchronized void shout(String message, Client sender) {
-		broadcast(TextColors.colorUserName(sender.connectedAccount.username()) + "> " + message);
+	void shout(String message, Client sender) {
+		publish(Message.shout(this, sender.connectedAccount.username(), message));
 	}
 
-//	synchronized private void broadcast(String message, Client sender) {
-//		connectedClients.stream().filter(
-//				client -> !client.equals(sender)
-//		).forEach(
-//				client -> client.message(message)
-//		);
-//	}
+	private void publish(Message message) {
+		if (batchWindow <= 0) {
+			broadcast(message);
+			return;
+		}
+		batch.add(message);
+		int pending = batched.incrementAndGet();
+		if (pending == 1) {
+			batcher.schedule(this::deliverBatch, batchWindow, TimeUnit.MILLISECONDS);
+		} else if (pending == Settings.channelBatchMessages) {
+			batcher.execute(this::deliverBatch);
+		}
+	}
 
-	synchronized private void broadcast(String message) {
-		connectedClients.stream().forEach(
-				client -> client.message(message)
-		);
+	// Runs on the batcher thread only
+	private void deliverBatch() {
+		List<Message> messages = new ArrayList<>();
+		for (Message message; messages.size() < Settings.channelBatchMessages && (message = batch.poll()) != null; ) {
+			messages.add(message);
+		}
+		if (messages.isEmpty()) return;
+		int remaining = batched.addAndGet(-messages.size());
+		if (remaining > 0) { // added while this batch was taken, nobody else will schedule them
+			batcher.schedule(this::deliverBatch, remaining >= Settings.channelBatchMessages ? 0 : batchWindow, TimeUnit.MILLISECONDS);
+		}
+		batchSize.record(messages.size());
+		broadcast(messages.size() == 1 ? messages.get(0) : Message.batch(messages));
 	}
 
-//	synchronized public ArrayList<String> listClients() {
-//		return connectedClients.stream().map(client -> client.connectedAccount.username()).collect(Collectors.toCollection(ArrayList::new));
-//	}
+	private void broadcast(Message message) {
+		long start = System.nanoTime();
+		int recipients = 0;
+		for (int i = 0; i < members.length; i++) {
+			List<Client> slice = members[i];
+			if (slice.isEmpty()) continue;
+			recipients += slice.size();
+			Shard.get(i).dispatch(() -> {
+				for (Client client : slice) {
+					if (client.isActive()) client.message(message);
+				}
+			});
+		}
+		broadcastDuration.recordSince(start);
+		fanOut.record(recipients);
+	}
 
-	ArrayList<Client> getConnectedClients() {
-		return connectedClients;
+	List<Client> getConnectedClients() {
+		List<Client> clients = new ArrayList<>();
+		for (List<Client> slice : members) {
+			clients.addAll(slice);
+		}
+		return clients;
 	}
-}
\ No newline at end of file
+}
@@ -1,12 +1,17 @@
 package com.luminis.echochamber.server;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.luminis.echochamber.server.ClientState.*;
 
 enum ClientState {
-	ENTRANCE	(new String[]{"exit", "help", "status", "setname", "login"}),
-	TRANSIENT	(new String[]{"exit", "help", "status", "logout", "whisper", "shout", "users", "setpwd"}),
-	LOGGED_IN	(new String[]{"exit", "help", "status", "logout", "whisper", "shout", "users", "befriend", "unfriend", "delete", "accounts", "shutdown"}),
+	ENTRANCE	(new String[]{"exit", "help", "status", "setname", "login", "resume"}),
+	TRANSIENT	(new String[]{"exit", "help", "status", "logout", "whisper", "shout", "join", "leave", "users", "setpwd"}),
+	LOGGED_IN	(new String[]{"exit", "help", "status", "logout", "whisper", "shout", "join", "leave", "users", "befriend", "unfriend", "delete", "accounts", "shutdown"}),
 	DELETE_CONF	(new String[]{"exit", "help", "cancel", "delete"}),
 	EXIT		(new String[]{});
 
@@ -23,109 +28,375 @@ enum ClientState {
 	}
 }
 
+/**
+ * A session. Clients are actors: everything that reads or changes the state of a session runs as a task from its
+ * mailbox, one at a time, on the event loop of its shard. Other threads, like its connection, the timers and other
+ * sessions, send it tasks instead of calling into it. The outbound queue is the only thing they share.
+ */
 class Client {
 	private Server server;
-	private InputParser parser = new InputParser();
-	private ClientState state;
-	private Queue<String> output = new LinkedList<>();
+	private static final InputParser parser = new InputParser(); // commands are stateless, so all clients share them
+	private volatile ClientState state;
+	private final OutboundQueue output = new OutboundQueue();
+	private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+	private volatile int scheduled; // 1 while a run of the mailbox is queued on the shard
+	private static final AtomicIntegerFieldUpdater<Client> scheduledUpdater = AtomicIntegerFieldUpdater.newUpdater(Client.class, "scheduled");
+	private static final int MAILBOX_BATCH = 64; // tasks per run, so a busy session cannot starve the rest of its shard
+	private boolean suspended; // while the expensive part of a command runs on a worker, only used on the shard thread
 	public UUID id;
-	Channel connectedChannel = null;
+	final Shard shard;
+	Channel connectedChannel = null; // where shouts go, one of the channels the client is in
+	private final List<Channel> channels = new ArrayList<>(1);
 	Account connectedAccount = null;
 
+	private volatile long lastActivity = System.nanoTime();
+	private boolean idleWarningSent = false;
+	private volatile TimerWheel.Timeout idleTimeout;
+
+	private volatile long resumeNonce; // 0 while there is no valid resume token
+	private volatile TimerWheel.Timeout resumeExpiry;
+	private volatile Client successor; // set when this connection's session took over a detached one
+
+	private static final AtomicLong totalQueuedOutput = new AtomicLong();
+	private static final Metrics.Histogram queueDepth = Metrics.histogram("client_outbound_queue_depth", "Outbound queue depth of a client after enqueueing a message");
+	private static final Metrics.Counter sessionsDetached = Metrics.counter("sessions_detached_total", "Sessions kept for resumption after their connection dropped");
+	private static final Metrics.Counter sessionsResumed = Metrics.counter("sessions_resumed_total", "Detached sessions taken over by a new connection");
+	private static final Metrics.Counter sessionsExpired = Metrics.counter("sessions_resume_expired_total", "Detached sessions cleaned up after the grace period");
+	private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(Settings.commandWorkers, Settings.commandWorkers, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(Settings.commandQueueSize), runnable -> {
+				Thread thread = new Thread(runnable, "Command worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private static final Metrics.Counter commandsOffloaded = Metrics.counter("commands_offloaded_total", "Commands whose expensive part was handed to the command workers");
+	private static final Metrics.Counter commandsRefused = Metrics.counter("commands_refused_total", "Commands refused because the command workers were full");
+	static {
+		Metrics.gauge("client_outbound_queued_messages", "Messages waiting in all outbound queues", totalQueuedOutput::get);
+		Metrics.gauge("command_workers_queued", "Commands waiting for a command worker", () -> workers.getQueue().size());
+
+		parser.addCommand(new helpCommand		());
+		parser.addCommand(new setnameCommand	());
+		parser.addCommand(new setpwdCommand		());
+		parser.addCommand(new loginCommand		());
+		parser.addCommand(new resumeCommand		());
+		parser.addCommand(new logoutCommand		());
+		parser.addCommand(new accountsCommand	());
+		parser.addCommand(new exitCommand		());
+		parser.addCommand(new usersCommand		());
+		parser.addCommand(new whisperCommand	());
+		parser.addCommand(new shoutCommand		());
+		parser.addCommand(new joinCommand		());
+		parser.addCommand(new leaveCommand		());
+		parser.addCommand(new deleteCommand		());
+		parser.addCommand(new cancelCommand		());
+		parser.addCommand(new statusCommand		());
+		parser.addCommand(new befriendCommand	());
+		parser.addCommand(new unfriendCommand	());
+		parser.addCommand(new shutdownCommand	());
+		parser.addCommand(new noCommand			());
+	}
+
 	Client(Server server, UUID id) {
 		this.id = id;
 		this.server = server;
-		this.server.add(this);
-		registerCommands();
+		shard = Shard.assign();
 		state = ENTRANCE;
+		this.server.add(this);
+		scheduleIdleCheck(Settings.idleTimeout);
 	}
 
 	public boolean isActive() {
 		return state != EXIT;
 	}
 
-	public void inputFromRemote(String input) {
+	// Adds a task to the mailbox, and queues a run of the mailbox on the shard unless one is queued already
+	void send(Runnable task) {
+		mailbox.add(task);
+		if (scheduledUpdater.compareAndSet(this, 0, 1)) shard.execute(this::runMailbox);
+	}
+
+	private void runMailbox() {
+		for (int i = 0; i < MAILBOX_BATCH; i++) {
+			if (suspended) return; // the run stays scheduled, it is continued on the shard when the command is done
+			Runnable task = mailbox.poll();
+			if (task == null) break;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Main.logger.error("Task of client {} failed", id, e);
+			}
+		}
+		scheduled = 0;
+		if (!mailbox.isEmpty() && scheduledUpdater.compareAndSet(this, 0, 1)) shard.execute(this::runMailbox);
+	}
+
+	// A line from the connection. Lines that arrive after a resume, before the connection switched over to the resumed
+	// session, are passed on to it.
+	void receive(String line) {
+		send(() -> {
+			Client successor = this.successor;
+			if (successor != null) successor.receive(line);
+			else inputFromRemote(line);
+		});
+	}
+
+	// Runs from the mailbox, which an offloaded command holds until it is done
+	void inputFromRemote(String input) {
+		lastActivity = System.nanoTime();
+		respond(() -> parser.evaluate(this, state, input));
+	}
+
+	// Runs a command under the read lock and queues its answer
+	private void respond(Callable<String> command) {
+		server.mutations.readLock().lock();
 		try {
-			String output = parser.evaluate(state, input);
+			if (!isActive()) return; // shutdown has started
+			String output = command.call();
 			if (output != null) {
-				message(output);
+				message(Message.reply(output));
 			}
 		} catch (Exception e) {
-			message(e.getMessage());
+			if (e instanceof RuntimeException && !(e instanceof RejectedExecutionException)) { // a bug rather than invalid input
+				Main.logger.error("Command of client {} failed", id, e);
+			}
+			message(Message.error(e));
+		} finally {
+			server.mutations.readLock().unlock();
+		}
+	}
+
+	// Runs the expensive part of a command, like hashing a password or building a listing that grows with the number of
+	// accounts, on a worker, so it cannot hold up the other sessions of the shard. The work must not touch the session.
+	// Its result is handed back to the shard, where finish() changes the session and gives the answer. The mailbox
+	// waits until then, so input after the command is handled after it.
+	<T> void offload(Callable<T> work, Function<T, String> finish) {
+		suspended = true;
+		try {
+			workers.execute(() -> {
+				Callable<String> answer;
+				try {
+					T result = work.call();
+					answer = () -> finish.apply(result);
+				} catch (Exception e) {
+					answer = () -> { throw e; };
+				}
+				Callable<String> command = answer;
+				// ahead of the waiting input, and on the shard, so it cannot overlap the run that offloaded the command
+				shard.execute(() -> {
+					suspended = false;
+					respond(command);
+					runMailbox();
+				});
+			});
+			commandsOffloaded.increment();
+		} catch (RejectedExecutionException e) {
+			suspended = false;
+			commandsRefused.increment();
+			throw new RejectedExecutionException("Server busy, try again later");
 		}
 	}
 
+	// Called by the writer of the connection once it took all output
+	void awaitOutput() {
+		output.await();
+	}
+
 	boolean outputForRemoteAvailable() {
-		return ( output.peek() != null );
+		return !output.isEmpty();
 	}
-	String outputForRemote() {
-		return output.poll();
+	Message outputForRemote() {
+		Message message = output.poll();
+		if (message != null) {
+			totalQueuedOutput.decrementAndGet();
+		}
+		return message;
+	}
+
+	void message(Message message){
+		queueDepth.record(output.add(message));
+		totalQueuedOutput.incrementAndGet();
 	}
 
-	void message(String message){ // TODO temporary
-		output.add(message);
+	// Messages from other sessions go through the mailbox
+	void deliver(Message message) {
+		send(() -> {
+			if (isActive()) message(message);
+		});
 	}
 
 	public void shutdown(String s) {
-		message(s);
-		state = EXIT;
+		send(() -> {
+			message(Message.system(s));
+			state = EXIT;
+		});
+	}
+
+	void disconnect() {
+		send(() -> state = EXIT);
 	}
 
 	public void cleanup() {
-		if (connectedChannel != null) {
-			disconnectFromChannel();
-		}
-		if (connectedAccount != null) {
-			unSetAccount();
+		send(this::endSession);
+	}
+
+	// Called by the connection when it ends. A dropped connection leaves the session for resumption if it can, any
+	// other end of the connection ends the session. Waits for the mailbox to get there, so that all output of earlier
+	// tasks is queued by then. Returns true if the session was kept.
+	boolean connectionClosed() {
+		CompletableFuture<Boolean> kept = new CompletableFuture<>();
+		send(() -> {
+			boolean detached = false;
+			try {
+				detached = isActive() && detach();
+				if (!detached) endSession();
+			} finally {
+				kept.complete(detached);
+			}
+		});
+		return kept.join();
+	}
+
+	private void endSession() {
+		state = EXIT;
+		idleTimeout.cancel();
+		server.mutations.readLock().lock();
+		try {
+			disconnectFromChannels();
+			if (connectedAccount != null) {
+				unSetAccount();
+			}
+		} finally {
+			server.mutations.readLock().unlock();
 		}
 		server.remove(this);
 	}
 
-	private void registerCommands() {
-		parser.addCommand(new helpCommand		(this));
-		parser.addCommand(new setnameCommand	(this));
-		parser.addCommand(new setpwdCommand		(this));
-		parser.addCommand(new loginCommand		(this));
-		parser.addCommand(new logoutCommand		(this));
-		parser.addCommand(new accountsCommand	(this));
-		parser.addCommand(new exitCommand		(this));
-		parser.addCommand(new usersCommand		(this));
-		parser.addCommand(new whisperCommand	(this));
-		parser.addCommand(new shoutCommand		(this));
-		parser.addCommand(new deleteCommand		(this));
-		parser.addCommand(new cancelCommand		(this));
-		parser.addCommand(new statusCommand		(this));
-		parser.addCommand(new befriendCommand	(this));
-		parser.addCommand(new unfriendCommand	(this));
-		parser.addCommand(new shutdownCommand	(this.server));
-		parser.addCommand(new noCommand			());
+	// Keeps account, channel and undelivered output when the connection drops unexpectedly, so that a reconnect within
+	// the grace period can take over the session without logging in again. Returns false if there is nothing to resume.
+	private boolean detach() {
+		if (resumeNonce == 0 || !server.isActive()) return false;
+		idleTimeout.cancel();
+		server.detach(this);
+		resumeExpiry = server.timers.schedule(() -> send(this::expire), Settings.resumeGrace, TimeUnit.SECONDS);
+		sessionsDetached.increment();
+		Main.logger.info("Client {} detached, resumable for {} seconds", id, Settings.resumeGrace);
+		return true;
+	}
+
+	private void expire() {
+		if (server.expire(this)) {
+			Main.logger.info("Resume grace period of client {} expired", id);
+			sessionsExpired.increment();
+			endSession();
+		}
 	}
 
-	private void connectToChannel(Channel channel) {
-		if (this.connectedChannel == null) {
-			this.connectedChannel = channel;
+	private void attach() {
+		resumeExpiry.cancel();
+		lastActivity = System.nanoTime();
+		idleWarningSent = false;
+		scheduleIdleCheck(Settings.idleTimeout);
+		sessionsResumed.increment();
+		Main.logger.info("Client {} resumed", id);
+		message(Message.reply("Resumed session as " + connectedAccount.username()));
+		issueResumeToken();
+	}
+
+	boolean acceptsResumeToken(String token) {
+		long nonce = resumeNonce;
+		return nonce != 0 && token.equals(Security.createResumeToken(id, nonce));
+	}
+
+	// The detached session this client resumed, if any. The connection continues with that session instead.
+	Client successor() {
+		return successor;
+	}
+
+	private void issueResumeToken() {
+		if (Settings.resumeGrace > 0) {
+			resumeNonce = Security.newNonce();
+			message(Message.system("Resume token: " + Security.createResumeToken(id, resumeNonce)));
+		}
+	}
+
+	private void scheduleIdleCheck(long seconds) {
+		idleTimeout = server.timers.schedule(() -> send(this::checkIdle), seconds, TimeUnit.SECONDS);
+	}
+
+	// Rather than rescheduling on every input, the check compares against the last activity and reschedules itself for
+	// the remaining time.
+	private void checkIdle() {
+		if (!isActive()) return;
+
+		long idle = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - lastActivity);
+		if (idle < Settings.idleTimeout) {
+			idleWarningSent = false;
+			scheduleIdleCheck(Settings.idleTimeout - idle);
+		} else if (!idleWarningSent) {
+			idleWarningSent = true;
+			message(Message.system("Warning: you will be disconnected in " + Settings.keepaliveTimeout + " seconds due to inactivity"));
+			scheduleIdleCheck(Settings.keepaliveTimeout);
+		} else {
+			Main.logger.info("Disconnecting idle client {}", id);
+			message(Message.system("Disconnected due to inactivity"));
+			state = EXIT;
+		}
+	}
+
+	// Joins the channel if needed, and makes it the one shouts go to
+	private void connectToChannel(String name) {
+		Channel channel = channelNamed(name);
+		if (channel == null) {
+			channel = server.join(name);
+			channels.add(channel);
 			channel.subscribe(this);
-			Main.logger.info("Client bound to channel " + channel);
+			Main.logger.info("Client bound to channel {}", channel);
+		}
+		connectedChannel = channel;
+	}
+
+	private Channel channelNamed(String name) {
+		for (Channel channel : channels) {
+			if (channel.name().equals(name)) return channel;
+		}
+		return null;
+	}
+
+	private void disconnectFromChannel(Channel channel) {
+		if (channels.remove(channel)) {
+			Main.logger.info("Client unbound from channel {}", channel);
+			channel.unSubscribe(this);
+			server.leave(channel);
+			if (connectedChannel == channel) {
+				connectedChannel = channels.isEmpty() ? null : channels.get(channels.size() - 1);
+			}
 		}
-		else Main.logger.warn("Client already bound to channel " + this.connectedChannel);
+		else Main.logger.warn("Client not bound to channel {}", channel);
 	}
 
-	private void disconnectFromChannel() {
-		if (connectedChannel != null) {
-			Main.logger.info("Client unbound from channel " + connectedChannel);
-			connectedChannel.unSubscribe(this);
-			connectedChannel = null;
+	private void disconnectFromChannels() {
+		while (!channels.isEmpty()) {
+			disconnectFromChannel(channels.get(channels.size() - 1));
 		}
-		else Main.logger.warn("Client not bound to a channel");
+	}
+
+	private String channelsDescription() {
+		String description = connectedChannel == null ? "none" : connectedChannel.toString();
+		if (channels.size() > 1) {
+			List<Channel> others = new ArrayList<>(channels);
+			others.remove(connectedChannel);
+			description += " (also in " + others.stream().map(Channel::toString).collect(Collectors.joining(", ")) + ")";
+		}
+		return description;
 	}
 
 	private void broadcastToChannel(String argument) {
 		connectedChannel.shout(argument, this);
 	}
 
-	private ArrayList<Client> clientsInSameChannel() {
+	private List<Client> clientsInSameChannel() {
 		if (connectedChannel == null) {
-			Main.logger.warn("Client " + this + " not connected to a channel");
+			Main.logger.warn("Client {} not connected to a channel", this);
 			return new ArrayList<>();
 		}
 		else {
@@ -133,19 +404,33 @@ class Client {
 		}
 	}
 
+	private static String listUsers(List<Client> clients) {
+		String list = "";
+		for (Client client : clients) {
+			Account account = client.connectedAccount;
+			if (account == null) continue; // logging out
+			if (!list.equals("")) {
+				list += "\n";
+			}
+			list += account.username() + " (" + (account.isPermanent() ? "permanent" : "transient") +")";
+		}
+		return list;
+	}
+
 	private void setAccount(Account account) {
 		if (connectedAccount == null) {
 			connectedAccount = account;
 			account.login(this);
-			Main.logger.info("Client bound to account " + account);
+			Main.logger.info("Client bound to account {}", account);
 		}
-		else Main.logger.warn("Client already bound to account " + account);
+		else Main.logger.warn("Client already bound to account {}", account);
 	}
 
 	private void unSetAccount() {
 		if (connectedAccount != null) {
-			Main.logger.info("Client unbound from account " + connectedAccount);
-			this.connectedAccount.logout();
+			Main.logger.info("Client unbound from account {}", connectedAccount);
+			resumeNonce = 0;
+			this.connectedAccount.logout(this);
 			if (!connectedAccount.isPermanent()) {
 				server.removeAccount(connectedAccount);
 				connectedAccount.delete();
@@ -178,47 +463,92 @@ class Client {
 		}
 		state = TRANSIENT;
 		setAccount(account);
-		connectToChannel(Server.defaultChannel);
+		connectToChannel(Server.defaultChannel.name());
+		issueResumeToken();
 		return "You are now logged in as " + arguments.get("username");
 	}
 
 	String setpwdCommandImp(Map<String, String> arguments) {
-		connectedAccount.makePermanent(arguments.get("password").getBytes());
-		state = LOGGED_IN;
-		return "Account now permanent";
+		if (!server.accounts.canStore(connectedAccount.username())) {
+			return "User name too long for a permanent account";
+		}
+		byte[] salt = Security.getNewSalt(), password = arguments.get("password").getBytes();
+		offload(() -> Security.calculateHash(Security.saltPassword(salt, password)), passwordHash -> {
+			connectedAccount.makePermanent(salt, passwordHash);
+			state = LOGGED_IN;
+			return "Account now permanent";
+		});
+		return null;
 	}
 
 	String loginCommandImp(Map<String, String> arguments) {
-		Account account = server.accounts.getAccountByName(arguments.get("username"));
-		if (account != null && account.checkPassword(arguments.get("password").getBytes())) {
-			if (account.isOnline()) {
+		String username = arguments.get("username");
+		byte[] password = arguments.get("password").getBytes();
+		offload(() -> {
+			Account account = server.accounts.getAccountByName(username);
+			return account != null && account.checkPassword(password) ? account : null;
+		}, account -> {
+			if (account == null) {
+				return "Incorrect username or password";
+			}
+			else if (account.isOnline() && !takeOver(account)) {
 				return "Account already logged in";
 			}
 			else {
-				String oldLastLoginDate = account.lastLoginDate.toString();
+				String oldLastLoginDate = account.lastLoginTime == 0 ? "never" : new Date(account.lastLoginTime).toString();
 				setAccount(account);
-				connectToChannel(Server.defaultChannel);
+				connectToChannel(Server.defaultChannel.name());
 				state = LOGGED_IN;
+				issueResumeToken();
 				return "Login successful. Last login: " + oldLastLoginDate;
 			}
-		} else {
-			return "Incorrect username or password";
+		});
+		return null;
+	}
+
+	// A login with the password ends a detached session of the account, rather than having the user wait out the
+	// grace period. Returns false if the account is in use by a connected session.
+	private boolean takeOver(Account account) {
+		Client previous = account.currentClient;
+		if (previous == null) return true; // logged out in the meantime
+		if (!server.expire(previous)) return false;
+		Main.logger.info("Client {} takes over account {} from detached client {}", id, account, previous.id);
+		account.logout(previous);
+		previous.cleanup();
+		return true;
+	}
+
+	String resumeCommandImp(Map<String, String> arguments) {
+		Client client = server.resume(arguments.get("token"));
+		if (client == null) {
+			return "Invalid or expired resume token";
 		}
+		client.send(client::attach);
+		successor = client;
+		return null;
 	}
 
 	String logoutCommandImp() {
-		disconnectFromChannel();
+		disconnectFromChannels();
 		unSetAccount();
 		state = ENTRANCE;
 		return "Returning to Entrance";
 	}
 
 	String accountsCommandImp() {
-		String list = "";
-		for (Account a : server.accounts.getAccounts()) {
-			list += a.infoString() + "\n";
-		}
-		return list;
+		offload(() -> {
+			String list = "";
+			for (Account a : server.accounts.getAccounts()) {
+				list += a.infoString() + "\n";
+			}
+			return list;
+		}, list -> list);
+		return null;
+	}
+
+	String shutdownCommandImp() {
+		server.shutdown();
+		return null;
 	}
 
 	String exitCommandImp() {
@@ -228,15 +558,11 @@ class Client {
 
 	String usersCommandImp(Map<String, String> arguments) {
 		if(arguments.size() == 0) {
-			String list = "";
-			for (Client client : clientsInSameChannel()) {
-				if (!list.equals("")) {
-					list += "\n";
-				}
-				list += client.connectedAccount.username() + " (" + (client.connectedAccount.isPermanent() ? "permanent" : "transient") +")";
-			}
-			return list;
-		} else return "??"; // TODO: implement once users can create channels
+			return listUsers(clientsInSameChannel());
+		} else {
+			Channel channel = server.findChannel(arguments.get("channel"));
+			return channel == null ? "No channel named " + arguments.get("channel") : listUsers(channel.getConnectedClients());
+		}
 	}
 
 	String whisperCommandImp(Map<String, String> arguments) {
@@ -244,7 +570,7 @@ class Client {
 		if (account == null){
 			return "No account with username " + arguments.get("username") + " found";
 		} else if (account.isOnline()) {
-			account.currentClient.message(connectedAccount.username() + " whispers: " + arguments.get("message"));
+			account.currentClient.deliver(Message.whisper(connectedAccount.username(), arguments.get("message")));
 			return "You whispered a message to " + account.username();
 		} else {
 			return "User " + account.username() + " is not online";
@@ -252,30 +578,62 @@ class Client {
 	}
 
 	String shoutCommandImp(Map<String, String> arguments) {
+		if (connectedChannel == null) {
+			return "You are not in any channel, use /join <channel>";
+		}
 		if (arguments.get("message") != null) {
 			broadcastToChannel(arguments.get("message"));
 		}
 		return null;
 	}
 
+	String joinCommandImp(Map<String, String> arguments) {
+		String name = arguments.get("channel");
+		if (!Channel.isValidName(name)) {
+			return "Channel names are 1 to " + Channel.MAX_NAME_LENGTH + " letters, digits, '-' or '_'";
+		}
+		if (channelNamed(name) == null && channels.size() >= Settings.maxChannelsPerClient) {
+			return "You cannot be in more than " + Settings.maxChannelsPerClient + " channels";
+		}
+		connectToChannel(name);
+		return "Now talking in " + connectedChannel;
+	}
+
+	String leaveCommandImp(Map<String, String> arguments) {
+		Channel channel = arguments.size() == 0 ? connectedChannel : server.findChannel(arguments.get("channel"));
+		if (channel == null || !channels.contains(channel)) {
+			return "You are not in that channel";
+		}
+		disconnectFromChannel(channel);
+		return "Left " + channel + (connectedChannel == null ? "" : ", now talking in " + connectedChannel);
+	}
+
 	String deleteCommandImp(Map<String, String> arguments) {
 		if(state == LOGGED_IN) {
 			state = DELETE_CONF;
 			return "This will delete your account!\nType /delete <password> to confirm!";
 		} else if (state == DELETE_CONF) {
 			Account account = connectedAccount;
-			if (arguments.size() == 1 && account.checkPassword(arguments.get("password").getBytes())) {
-				disconnectFromChannel();
-				unSetAccount();
-				server.removeAccount(account);
-				account.delete();
-				state = ENTRANCE;
-				return "Account deleted. Returning to Entrance";
-			}
-			else {
+			if (arguments.size() != 1) {
 				state = LOGGED_IN;
 				return "Missing or incorrect password. Cancelling deletion.";
 			}
+			byte[] password = arguments.get("password").getBytes();
+			offload(() -> account.checkPassword(password), correct -> {
+				if (correct) {
+					disconnectFromChannels();
+					unSetAccount();
+					server.removeAccount(account);
+					account.delete();
+					state = ENTRANCE;
+					return "Account deleted. Returning to Entrance";
+				}
+				else {
+					state = LOGGED_IN;
+					return "Missing or incorrect password. Cancelling deletion.";
+				}
+			});
+			return null;
 		} else {
 			return null;
 		}
@@ -294,16 +652,16 @@ class Client {
 						connectedAccount.isPermanent() ?
 								String.join("\n",
 										"You are logged in as permanent user '" + connectedAccount.username() + "'",
-										"\tAccount created: " + connectedAccount.creationDate,
-										"\tAccount online since: " + connectedAccount.lastLoginDate,
-										"Current channel: " + connectedChannel.toString(),
+										"\tAccount created: " + new Date(connectedAccount.creationTime),
+										"\tAccount online since: " + new Date(connectedAccount.lastLoginTime),
+										"Current channel: " + channelsDescription(),
 										"Relations: ",
-										connectedAccount.relations.toString()
+										connectedAccount.relationsDescription()
 								) :
 								String.join("\n",
 										"You are logged in as temporary user '" + connectedAccount.username() + "'",
-										"\tOnline since: " + connectedAccount.lastLoginDate,
-										"Current channel: " + connectedChannel.toString()
+										"\tOnline since: " + new Date(connectedAccount.lastLoginTime),
+										"Current channel: " + channelsDescription()
 								)
 		);
 	}
@@ -2,11 +2,12 @@ package com.luminis.echochamber.server;
 
 import java.util.*;
 
+// Commands are stateless and shared by all clients: the client and the parsed arguments are passed to execute()
 abstract class Command {
 	private String commandName, description;
 	private String[][] usages;
 	private boolean greedyLastArgument;
-	Map<String, String> arguments = new HashMap<>();
+	final Metrics.Histogram duration;
 
 	String getName() {
 		return commandName;
@@ -27,16 +28,17 @@ abstract class Command {
 	String getDescription() {
 		return description;
 	}
-	abstract String execute();
+	abstract String execute(Client receiver, Map<String, String> arguments);
 
 	Command(String commandName, String description, String[][] usages, boolean greedyLastArgument) {
 		this.commandName = commandName;
 		this.description = description;
 		this.usages = usages;
 		this.greedyLastArgument = greedyLastArgument;
+		duration = Metrics.histogram("command_duration_nanoseconds", Metrics.label("command", commandName), "Time to parse and execute a command");
 	}
 
-	public void argumentStringParser(String arguments) throws Exception {
+	public Map<String, String> argumentStringParser(String arguments) throws Exception {
 		List< Map<String, String> > argumentMapList = new ArrayList<>();
 
 		// try to match the string to the entries in usages
@@ -62,14 +64,12 @@ abstract class Command {
 		if (argumentMapList.isEmpty()) {throw new Exception("Wrong number of arguments");}
 		if (argumentMapList.size() > 1 ) {throw new Exception("Ambiguous arguments");} // indicates an error in usages array for this command
 
-		this.arguments = argumentMapList.get(0);
+		return argumentMapList.get(0);
 	}
 }
 
 class helpCommand extends Command {
-	private Client receiver;
-
-	helpCommand (Client receiver) {
+	helpCommand () {
 		super(
 				"help",
 				"Either lists all available commands or gives info on a specific command.",
@@ -79,18 +79,15 @@ class helpCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.helpCommandImp(arguments);
 	}
 }
 
 class setnameCommand extends Command {
-	private Client receiver;
-
-	setnameCommand(Client receiver) {
+	setnameCommand() {
 		super(
 				"setname",
 				"Sets a username and connects to the default channel as a temporary account.",
@@ -99,18 +96,15 @@ class setnameCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.setnameCommandImp(arguments);
 	}
 }
 
 class setpwdCommand extends Command {
-	private Client receiver;
-
-	setpwdCommand (Client receiver) {
+	setpwdCommand () {
 		super(
 				"setpwd",
 				"creates new account.",
@@ -119,18 +113,15 @@ class setpwdCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.setpwdCommandImp(arguments);
 	}
 }
 
 class loginCommand extends Command {
-	private Client receiver;
-	
-	loginCommand (Client receiver) {
+	loginCommand () {
 		super(
 				"login", 
 				"Log in to your account.",
@@ -139,18 +130,32 @@ class loginCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.loginCommandImp(arguments);
 	}
 }
 
-class logoutCommand extends Command {
-	private Client receiver;
+class resumeCommand extends Command {
+	resumeCommand () {
+		super(
+				"resume",
+				"Resumes a dropped session with the token issued at login.",
+				new String[][]{
+						{ "token" }
+				},
+				false
+		);
+	}
+
+	public String execute(Client receiver, Map<String, String> arguments) {
+		return receiver.resumeCommandImp(arguments);
+	}
+}
 
-	logoutCommand (Client receiver) {
+class logoutCommand extends Command {
+	logoutCommand () {
 		super(
 				"logout", 
 				"Logs out.",
@@ -159,18 +164,15 @@ class logoutCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.logoutCommandImp();
 	}
 }
 
 class accountsCommand extends Command { // TODO: should be admin command only
-	private Client receiver;
-
-	accountsCommand (Client receiver) {
+	accountsCommand () {
 		super(
 				"accounts", 
 				"Lists all accounts.",
@@ -179,18 +181,15 @@ class accountsCommand extends Command { // TODO: should be admin command only
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.accountsCommandImp();
 	}
 }
 
 class exitCommand extends Command {
-	private Client receiver;
-
-	exitCommand (Client receiver) {
+	exitCommand () {
 		super(
 				"exit", 
 				"Ends the current session.",
@@ -199,18 +198,15 @@ class exitCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.exitCommandImp();
 	}
 }
 
 class usersCommand extends Command {
-	private Client receiver;
-
-	usersCommand (Client receiver) {
+	usersCommand () {
 		super(
 				"users",
 				"Lists online users.",
@@ -220,18 +216,15 @@ class usersCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.usersCommandImp(arguments);
 	}
 }
 
 class whisperCommand extends Command {
-	private Client receiver;
-
-	whisperCommand (Client receiver) {
+	whisperCommand () {
 		super(
 				"whisper",
 				"Sends a message to a specific user.",
@@ -240,39 +233,68 @@ class whisperCommand extends Command {
 				},
 				true
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.whisperCommandImp(arguments);
 	}
 }
 
 class shoutCommand extends Command {
-	private Client receiver;
-
-	shoutCommand (Client receiver) { // TODO: should message "everyone on server" once multiple channel are possible. Command "talk" to speak to all in channel
+	shoutCommand () {
 		super(
 				"shout",
-				"Sends a message to all in the channel (default).",
+				"Sends a message to all in the current channel (default).",
 				new String[][]{
 						{ },
 						{ "message" }
 				},
 				true
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.shoutCommandImp(arguments);
 	}
 }
 
-class deleteCommand extends Command {
-	private Client receiver;
+class joinCommand extends Command {
+	joinCommand () {
+		super(
+				"join",
+				"Joins a channel, creating it if needed, and makes it the current channel. You stay in the other channels.",
+				new String[][]{
+						{ "channel" }
+				},
+				false
+		);
+	}
+
+	public String execute(Client receiver, Map<String, String> arguments) {
+		return receiver.joinCommandImp(arguments);
+	}
+}
+
+class leaveCommand extends Command {
+	leaveCommand () {
+		super(
+				"leave",
+				"Leaves a channel, or the current one.",
+				new String[][]{
+						{ },
+						{ "channel" }
+				},
+				false
+		);
+	}
+
+	public String execute(Client receiver, Map<String, String> arguments) {
+		return receiver.leaveCommandImp(arguments);
+	}
+}
 
-	deleteCommand (Client receiver) {
+class deleteCommand extends Command {
+	deleteCommand () {
 		super(
 				"delete",
 				"Deletes your account.",
@@ -282,18 +304,15 @@ class deleteCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.deleteCommandImp(arguments);
 	}
 }
 
 class cancelCommand extends Command {
-	private Client receiver;
-
-	cancelCommand (Client receiver) {
+	cancelCommand () {
 		super(
 				"cancel", 
 				"Cancels delete.",
@@ -302,18 +321,15 @@ class cancelCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.cancelCommandImp();
 	}
 }
 
 class statusCommand extends Command {
-	private Client receiver;
-
-	statusCommand (Client receiver) {
+	statusCommand () {
 		super(
 				"status",
 				"Shows details for current session",
@@ -322,18 +338,15 @@ class statusCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.status();
 	}
 }
 
 class befriendCommand extends Command {
-	private Client receiver;
-
-	befriendCommand (Client receiver) {
+	befriendCommand () {
 		super(
 				"befriend",
 				"Sends someone a friend request or accepts a request.",
@@ -342,18 +355,15 @@ class befriendCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.befriendCommandImp(arguments);
 	}
 }
 
 class unfriendCommand extends Command {
-	private Client receiver;
-
-	unfriendCommand (Client receiver) {
+	unfriendCommand () {
 		super(
 				"unfriend", 
 				"Removes someone from your friend list or cancels a friend request.",
@@ -362,10 +372,9 @@ class unfriendCommand extends Command {
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return receiver.unfriendCommandImp(arguments);
 	}
 }
@@ -380,15 +389,13 @@ class noCommand extends Command {
 		);
 	}
 
-	public String execute() {
+	public String execute(Client receiver, Map<String, String> arguments) {
 		return null;
 	}
 }
 
 class shutdownCommand extends Command { // TODO: for admin mode only
-	private Server receiver;
-
-	shutdownCommand (Server receiver) {
+	shutdownCommand () {
 		super(
 				"shutdown",
 				"Shutdown server",
@@ -397,11 +404,9 @@ class shutdownCommand extends Command { // TODO: for admin mode only
 				},
 				false
 		);
-		this.receiver = receiver;
 	}
 
-	public String execute() {
-		receiver.shutdown();
-		return null;
+	public String execute(Client receiver, Map<String, String> arguments) {
+		return receiver.shutdownCommandImp();
 	}
 }
\ No newline at end of file
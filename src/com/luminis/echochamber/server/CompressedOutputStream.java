@@ -0,0 +1,61 @@
+package com.luminis.echochamber.server;
+
+import com.luminis.echochamber.protocol.Compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Deflate stream for one connection, see Compression. Every flush() is a SYNC_FLUSH, so each batch of output reaches the
+ * client as soon as it is written.
+ */
+class CompressedOutputStream extends DeflaterOutputStream {
+	private static final Metrics.Counter uncompressedBytes = Metrics.counter("compression_input_bytes_total", "Bytes handed to connection compressors");
+	private static final Metrics.Counter compressedBytes = Metrics.counter("compression_output_bytes_total", "Compressed bytes written by connection compressors");
+	private static final Metrics.Histogram cost = Metrics.histogram("compression_flush_duration_nanoseconds", "CPU time to compress and flush one batch of output");
+	static {
+		Metrics.gauge("compression_ratio_percent", "Compressed size as a percentage of the original size", () -> {
+			long input = uncompressedBytes.get();
+			return input == 0 ? 100 : compressedBytes.get() * 100 / input;
+		});
+	}
+
+	private long bytesRead = 0, bytesWritten = 0;
+	private long busy = 0; // nanoseconds spent deflating since the last flush
+
+	CompressedOutputStream(OutputStream out) {
+		super(out, new Deflater(Settings.compressionLevel), 8192, true);
+		def.setDictionary(Compression.dictionary());
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		long start = System.nanoTime();
+		super.write(bytes, offset, length);
+		busy += System.nanoTime() - start;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		long start = System.nanoTime();
+		super.flush();
+		cost.record(busy + System.nanoTime() - start);
+		busy = 0;
+
+		uncompressedBytes.add(def.getBytesRead() - bytesRead);
+		compressedBytes.add(def.getBytesWritten() - bytesWritten);
+		bytesRead = def.getBytesRead();
+		bytesWritten = def.getBytesWritten();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			def.end();
+		}
+	}
+}
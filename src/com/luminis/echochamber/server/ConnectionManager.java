@@ -1,25 +1,70 @@
 package com.luminis.echochamber.server;
 
+import com.luminis.echochamber.protocol.Frame;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 class ConnectionManager {
 	private int port;
 	private Server server;
-	public static int maxConnectedClients = 3;
+	private AdmissionController admission = new AdmissionController();
+	private SSLContext sslContext;
+	private ThreadPoolExecutor handshakes;
+	private static final String HANDSHAKE_MARK = "echochamber.handshake";
+	private final Map<ByteBuffer, Boolean> sessionIds = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) { // ids of recent TLS 1.2 sessions
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+			return size() > Settings.tlsSessionCacheSize;
+		}
+	};
+	private static final long MIN_ACCEPT_BACKOFF = 10, MAX_ACCEPT_BACKOFF = 1000; // milliseconds to wait after a failed accept()
+
+	private static final Metrics.Histogram inputBatchSize = Metrics.histogram("input_batch_lines", "Number of complete lines evaluated per socket read");
+	private static final Metrics.Histogram acceptDuration = Metrics.histogram("accept_duration_nanoseconds", "Time from accept() returning to the connection being admitted or rejected");
+	private static final Metrics.Histogram handshakeDuration = Metrics.histogram("tls_handshake_duration_nanoseconds", "Time to complete a TLS handshake");
+	private static final Metrics.Counter handshakesResumed = Metrics.counter("tls_sessions_resumed_total", "TLS handshakes that resumed an earlier session");
+	private static final Metrics.Counter handshakesFailed = Metrics.counter("tls_handshakes_failed_total", "TLS handshakes that failed or timed out");
 
 	public ConnectionManager(int port, Server server) {
+		this(port, server, null);
+	}
+
+	// With an SSLContext the listener only accepts TLS connections
+	public ConnectionManager(int port, Server server, SSLContext sslContext) {
 		this.port = port;
 		this.server = server;
+		this.sslContext = sslContext;
+		if (sslContext != null) {
+			handshakes = new ThreadPoolExecutor(Settings.tlsHandshakeThreads, Settings.tlsHandshakeThreads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(Settings.rejectionQueueSize), runnable -> {
+						Thread thread = new Thread(runnable, "TLS handshake");
+						thread.setDaemon(true);
+						return thread;
+					});
+		}
 	}
 
+	// Reads on its own thread and writes on a second one, which wakes up as soon as output is queued
 	private class Connection implements Runnable {
 		private Socket socket;
-		private Client client;
-		private Thread connectionThread;
+		private volatile Client client; // switched by the reading thread when the connection resumes a session
+		private Thread connectionThread, writerThread;
+		private Protocol protocol; // guarded by this once the writer runs, replaced by a handshake
+		private volatile boolean writing = true;
+		private volatile boolean writeFailed;
 
 		Connection(Socket socket, UUID id) {
 			this.socket = socket;
@@ -31,76 +76,372 @@ class ConnectionManager {
 
 		@Override
 		public void run() {
-			Main.logger.info("Session started for client at " + socket.getInetAddress() + ":" + socket.getLocalPort());
+			Main.logger.info("Session started for client at {}:{}", socket.getInetAddress(), socket.getLocalPort());
 			try (
-					PrintWriter toRemote = new PrintWriter(socket.getOutputStream(), true);
-					BufferedReader fromRemote = new BufferedReader(
-							new InputStreamReader(socket.getInputStream())
-					)
+					InputStream fromRemote = socket.getInputStream();
+					OutputStream toRemote = socket.getOutputStream()
 			) {
+				PushbackInputStream in = new PushbackInputStream(fromRemote, 1);
+				protocol = new TextProtocol(in, toRemote); // until a handshake says otherwise, so the welcome goes out right away
+				boolean negotiated = false;
+				writerThread = new Thread(this::write, connectionThread.getName() + " writer");
+				writerThread.start();
 				Main.logger.info("Server has opened a connection to client");
 
+				socket.setSoTimeout(Settings.readTimeout); // socket timeout to notice the end of the session while the client is silent
 				while (client.isActive()) {
 					try {
-						socket.setSoTimeout(100); // socket timeout to prevent readLine() from blocking
-						if (client.outputForRemoteAvailable()) {
-							toRemote.println(client.outputForRemote());
+						Client resumed = client.successor();
+						if (resumed != null) {
+							client.connectionClosed(); // returns once it passed on the lines it still had
+							client = resumed;
+							LockSupport.unpark(writerThread); // it may be waiting for output of the previous session
 						}
 
-						String input = fromRemote.readLine();
-						if (input == null) {
+						if (!negotiated) {
+							negotiate(in, toRemote);
+							negotiated = true;
+						}
+						lines = 0;
+						if (!protocol.read(this::input)) {
 							Main.logger.info("Client has unexpectedly disconnected from the server");
 							break;
-						} else {
-							client.inputFromRemote(input);
 						}
+						if (lines > 0) inputBatchSize.record(lines);
 					} catch (SocketTimeoutException e) {
 
+					} catch (EOFException e) {
+						Main.logger.info("Client has unexpectedly disconnected from the server");
+						break;
 					} catch (IOException e) {
-						e.printStackTrace();
+						if (!writeFailed) e.printStackTrace(); // else the writer closed the socket
 						break;
 					}
 				}
-				client.cleanup();
-				fromRemote.close();
-				toRemote.close();
+				stopWriter();
+				if (!closeSession() && !writeFailed) {
+					writeOutput();
+				}
+				protocol.close();
 				socket.close();
 
 				Main.logger.info("Server has closed the connection to client");
 			} catch (IOException e) {
 				e.printStackTrace();
+				stopWriter();
+				closeSession();
+			} finally {
+				if (protocol != null) {
+					try {
+						protocol.close(); // again if it failed before, so the compressor is always released
+					} catch (IOException e) {
+						// the connection is gone already
+					}
+				}
+				admission.release(socket.getInetAddress());
 			}
 			Main.logger.info("Session terminated");
 		}
+
+		private int lines;
+
+		// Also closes a session that was resumed by a line the connection did not get to switch over for
+		private boolean closeSession() {
+			boolean kept = client.connectionClosed();
+			for (Client resumed; (resumed = client.successor()) != null; ) {
+				client = resumed;
+				kept = client.connectionClosed();
+			}
+			return kept;
+		}
+
+		// Called for every complete line of a batch, in order
+		private void input(String line) {
+			if (client.isActive()) {
+				client.receive(line);
+				lines++;
+			}
+		}
+
+		// Binary clients open with a handshake, so the first byte from the client decides; anything else means text. Until
+		// then the client gets text, interactive clients don't send first. Throws a SocketTimeoutException while the client
+		// is silent.
+		private void negotiate(PushbackInputStream in, OutputStream toRemote) throws IOException {
+			int first = in.read();
+			if (first != Frame.MAGIC) {
+				if (first >= 0) in.unread(first); // at the end of the stream, the read that follows finds it too
+				return;
+			}
+
+			int version, flags;
+			socket.setSoTimeout(Settings.handshakeTimeout);
+			try {
+				version = in.read();
+				flags = in.read();
+			} catch (SocketTimeoutException e) {
+				throw new IOException("Incomplete protocol handshake");
+			} finally {
+				socket.setSoTimeout(Settings.readTimeout);
+			}
+			if (version < 0 || flags < 0) throw new EOFException("Connection closed during the protocol handshake");
+			int supported = Frame.FLAG_BINARY | (Settings.compressionLevel > 0 ? Frame.FLAG_DEFLATE : 0);
+			int accepted = version == Frame.VERSION ? flags & supported : 0;
+			synchronized (this) { // the answer goes between the text and the output in the new protocol
+				toRemote.write(Frame.handshake(accepted));
+				toRemote.flush();
+				OutputStream out = (accepted & Frame.FLAG_DEFLATE) != 0 ? new CompressedOutputStream(toRemote) : toRemote;
+				protocol = (accepted & Frame.FLAG_BINARY) != 0 ? new BinaryProtocol(in, out) : new TextProtocol(in, out);
+			}
+			Main.logger.info("Client negotiated protocol version {} with flags {}", version, accepted);
+		}
+
+		// Runs on the writer thread. A failed write closes the socket, which ends the reading thread too.
+		private void write() {
+			try {
+				while (writing) {
+					Client current = client;
+					writeOutput();
+					current.awaitOutput();
+				}
+			} catch (IOException e) {
+				writeFailed = true;
+				Main.logger.info("Writing to client failed: {}", e.getMessage());
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+
+		private void stopWriter() {
+			if (writerThread == null) return;
+			writing = false;
+			LockSupport.unpark(writerThread);
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Writes all pending output with a single flush
+		private synchronized void writeOutput() throws IOException {
+			if (!client.outputForRemoteAvailable()) return;
+			Message message;
+			while ((message = client.outputForRemote()) != null) {
+				protocol.write(message);
+			}
+			protocol.flush();
+		}
 	}
 
-	void start() {
-		Main.logger.info("Listening for connections.");
-		try (ServerSocket serverSocket = new ServerSocket(port)) {
-			serverSocket.setSoTimeout(100); // When we shutdown the ConnectionManager, we want it to end the blocking call to accept() and terminate the loop
-			while (server.isActive()) {
+	// Runs on the handshake pool, so neither the accept loop nor any session thread waits for a slow handshake
+	private void handshake(SSLSocket socket) {
+		try {
+			handshakes.execute(() -> {
+				long start = System.nanoTime(), startMillis = System.currentTimeMillis();
 				try {
-					Socket socket = serverSocket.accept();
+					socket.setSoTimeout(Settings.tlsHandshakeTimeout);
+					socket.startHandshake();
+					handshakeDuration.recordSince(start);
+					if (resumed(socket.getSession(), startMillis)) handshakesResumed.increment();
+					new Connection(socket, Security.createUUID());
+				} catch (IOException e) {
+					handshakesFailed.increment();
+					Main.logger.info("TLS handshake with {} failed: {}", socket.getInetAddress(), e.getMessage());
+					closeUnused(socket);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			handshakesFailed.increment();
+			closeUnused(socket);
+		}
+	}
+
+	// A session resumed from the server's cache is the one an earlier handshake marked, and a resumed TLS 1.2 session
+	// has the id of an earlier one. A TLS 1.3 session restored from a stateless ticket has neither, its id only echoes
+	// the client's, so there only its original creation time tells.
+	private boolean resumed(SSLSession session, long startMillis) {
+		boolean marked = session.getValue(HANDSHAKE_MARK) != null;
+		session.putValue(HANDSHAKE_MARK, Boolean.TRUE);
+		if (marked) return true;
+		if ("TLSv1.3".equals(session.getProtocol())) return session.getCreationTime() < startMillis;
+		byte[] id = session.getId();
+		if (id == null || id.length == 0) return false;
+		synchronized (sessionIds) {
+			return sessionIds.put(ByteBuffer.wrap(id), Boolean.TRUE) != null;
+		}
+	}
+
+	private void closeUnused(Socket socket) {
+		admission.release(socket.getInetAddress());
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	// One bound server socket with its own accept thread. Listeners that share an address are bound with SO_REUSEPORT,
+	// and the kernel spreads the incoming connections over them.
+	private class Listener implements Runnable {
+		private final String name;
+		private final ServerSocket serverSocket;
+		private final boolean tcpNoDelay;
+		private final int sendBufferSize;
+		private final Metrics.Counter accepts;
+		private final Metrics.Counter acceptErrors;
+
+		Listener(String name, ServerSocket serverSocket, String spec) {
+			this.name = name;
+			this.serverSocket = serverSocket;
+			tcpNoDelay = Settings.tcpNoDelay(spec);
+			sendBufferSize = Settings.sendBufferSize(spec);
+			accepts = Metrics.counter("listener_accepts_total", Metrics.label("listener", name), "Connections accepted per listener");
+			acceptErrors = Metrics.counter("listener_accept_errors_total", Metrics.label("listener", name), "Failed calls to accept() per listener");
+		}
+
+		@Override
+		public void run() {
+			try (ServerSocket serverSocket = this.serverSocket) {
+				serverSocket.setSoTimeout(100); // When we shutdown the ConnectionManager, we want it to end the blocking call to accept() and terminate the loop
+				long backoff = 0;
+				while (server.isActive()) {
+					Socket socket;
+					try {
+						socket = serverSocket.accept();
+						backoff = 0;
+					} catch (SocketTimeoutException s) {
+						continue;
+					} catch (IOException e) {
+						// Like running out of file descriptors: keep listening, but give it some time to pass
+						if (serverSocket.isClosed()) throw e;
+						acceptErrors.increment();
+						backoff = Math.min(Math.max(2 * backoff, MIN_ACCEPT_BACKOFF), MAX_ACCEPT_BACKOFF);
+						Main.logger.warn("Accept on listener {} failed, retrying in {} ms", name, backoff, e);
+						try {
+							Thread.sleep(backoff);
+						} catch (InterruptedException i) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+						continue;
+					}
+					long start = System.nanoTime();
 					if (!server.isActive()) break; // to prevent it from accepting a connection while the rest of the system is shutting down
 
-					if (server.numberOfClients() >= maxConnectedClients) {
-						PrintWriter toRemote = new PrintWriter(socket.getOutputStream(), true);
-						toRemote.println("Too many connections. Closing connection");
-						toRemote.close();
-						socket.close();
-						Main.logger.warn("Maximum number of simultaneous connections reached");
-					} else {
+					accepts.increment();
+					try {
+						socket.setTcpNoDelay(tcpNoDelay);
+						if (sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+					} catch (IOException e) { // the connection is gone already
+						try {
+							socket.close();
+						} catch (IOException ignored) {
+						}
+						continue;
+					}
+					Admission verdict = admission.admit(socket.getInetAddress());
+					if (verdict == Admission.ACCEPTED && socket instanceof SSLSocket) {
+						handshake((SSLSocket) socket);
+					} else if (verdict == Admission.ACCEPTED) {
 						new Connection(socket, Security.createUUID());
+					} else {
+						admission.reject(socket, verdict);
 					}
-				} catch (SocketTimeoutException s) {
+					acceptDuration.recordSince(start);
+				}
+			} catch (IOException e) {
+				Main.logger.error("Listener {} stopped", name, e);
+			}
+		}
+	}
 
+	// Binds every listener, or none: a listener that cannot be bound is fatal, like it always was
+	private List<Listener> listen() throws IOException {
+		if (sslContext != null) Main.logger.info("Using TLS");
+		List<Listener> listeners = new ArrayList<>();
+		String[] specs = (Settings.listeners == null ? Integer.toString(port) : Settings.listeners).split(",");
+		InetSocketAddress[] addresses = new InetSocketAddress[specs.length];
+		for (int s = 0; s < specs.length; s++) { // all checked before any is bound
+			specs[s] = specs[s].trim();
+			addresses[s] = address(specs[s]);
+		}
+		for (int s = 0; s < specs.length; s++) {
+			String spec = specs[s];
+			InetSocketAddress address = addresses[s];
+			int threads = Math.max(1, Settings.acceptThreads(spec));
+			for (int i = 0; i < threads; i++) {
+				ServerSocket serverSocket = sslContext == null ? new ServerSocket() : sslContext.getServerSocketFactory().createServerSocket();
+				if (threads > 1 && !reusePort(serverSocket)) {
+					Main.logger.warn("SO_REUSEPORT is not available, listener {} gets one accept thread", spec);
+					threads = 1;
+				}
+				int receiveBufferSize = Settings.receiveBufferSize(spec);
+				if (receiveBufferSize > 0) serverSocket.setReceiveBufferSize(receiveBufferSize); // before bind, so it applies to the TCP window of accepted sockets
+				try {
+					serverSocket.bind(address, Settings.acceptBacklog(spec));
+				} catch (IOException e) {
+					serverSocket.close();
+					for (Listener listener : listeners) listener.serverSocket.close();
+					throw new IOException("Could not listen on " + spec + ": " + e.getMessage(), e);
 				}
+				listeners.add(new Listener(threads > 1 ? spec + "#" + i : spec, serverSocket, spec));
 			}
-			serverSocket.close();
+		}
+		return listeners;
+	}
+
+	// [host:]port, where an IPv6 host is written in brackets
+	private static InetSocketAddress address(String spec) throws IOException {
+		int colon = spec.lastIndexOf(':');
+		try {
+			int port = Integer.parseInt(spec.substring(colon + 1));
+			if (colon < 0) return new InetSocketAddress(port);
+			String host = spec.substring(0, colon);
+			if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+			return new InetSocketAddress(host, port);
+		} catch (IllegalArgumentException e) { // not a number, or out of range
+			throw new IOException("Invalid listener '" + spec + "', expected [host:]port");
+		}
+	}
+
+	// SO_REUSEPORT only exists since Java 9, and not on every platform
+	private static boolean reusePort(ServerSocket serverSocket) {
+		try {
+			Object option = StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+			setOption.invoke(serverSocket, option, true);
+			return true;
+		} catch (ReflectiveOperationException e) { // an unsupported option arrives as an InvocationTargetException
+			return false;
+		}
+	}
+
+	// Returns once the server no longer accepts connections
+	void start() {
+		List<Listener> listeners;
+		try {
+			listeners = listen();
 		} catch (IOException e) {
-			System.err.println("Could not listen on port " + port);
+			System.err.println(e.getMessage());
 			System.exit(-1);
+			return;
+		}
+		List<Thread> threads = new ArrayList<>();
+		for (Listener listener : listeners) {
+			Thread thread = new Thread(listener, "Listener " + listener.name);
+			thread.start();
+			threads.add(thread);
+			Main.logger.info("Listening for connections on {}", listener.serverSocket.getLocalSocketAddress());
+		}
+		try {
+			for (Thread thread : threads) thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		Main.logger.info("Stopped listening for connections");
+		admission.shutdown();
+		if (handshakes != null) handshakes.shutdown();
+		Main.logger.info("Stopped listening for connections ({})", admission.statistics());
 	}
-}
\ No newline at end of file
+}
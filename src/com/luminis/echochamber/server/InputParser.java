@@ -8,18 +8,17 @@ import static com.luminis.echochamber.server.ClientState.*;
 
 class InputParser {
 	HashMap<String, Command> commands = new HashMap<>();
+	private static final Pattern regex = Pattern.compile("^\\s*(/([^\\s]*)\\s*)?(.*)\\s*");
 
 	void addCommand(Command command) {
 		commands.put(command.getName(), command);
 	}
 
-	String evaluate(ClientState state, String input) throws Exception {
+	String evaluate(Client client, ClientState state, String input) throws Exception {
 		String sanitizedInput = input.replaceAll("\\p{C}", ""); // strip non-printable characters by unicode regex
 		String commandName, arguments;
 		Command command;
 
-		String pattern = "^\\s*(/([^\\s]*)\\s*)?(.*)\\s*";
-		Pattern regex = Pattern.compile(pattern);
 		Matcher matcher = regex.matcher(sanitizedInput);
 		if (matcher.find()) {
 			commandName = matcher.group(2);
@@ -52,7 +51,11 @@ class InputParser {
 			throw new Exception("No such command");
 		}
 
-		command.argumentStringParser(arguments);
-		return command.execute();
+		long start = System.nanoTime();
+		try {
+			return command.execute(client, command.argumentStringParser(arguments));
+		} finally {
+			command.duration.recordSince(start);
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.luminis.echochamber.server;
+
+import com.cedarsoftware.util.io.JsonIoException;
+import com.cedarsoftware.util.io.JsonReader;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reads accounts files written before accounts were made compact: the id was a UUID, the times were Dates and the salt
+ * and password hash were hex strings. Those files are read as plain maps and converted, the next save writes the
+ * current format.
+ */
+final class LegacyAccounts {
+	private LegacyAccounts() {
+	}
+
+	static boolean matches(String json) {
+		return json.contains("\"creationDate\":");
+	}
+
+	static AccountCollection convert(String json) throws JsonIoException {
+		Object[] items = items(JsonReader.jsonToMaps(json));
+		Map<Map<?, ?>, Account> converted = new IdentityHashMap<>(); // json-io resolves references to the same map
+		AccountCollection accounts = new AccountCollection();
+		for (Object item : items) {
+			Map<?, ?> fields = (Map<?, ?>) item;
+			// temporary and deleted accounts were saved too, they are not kept now
+			if (!Boolean.TRUE.equals(fields.get("permanent")) || fields.get("username") == null) continue;
+			Account account = account(fields);
+			converted.put(fields, account);
+			accounts.add(account);
+		}
+		for (Map.Entry<Map<?, ?>, Account> entry : converted.entrySet()) {
+			Map<?, ?> relations = (Map<?, ?>) entry.getKey().get("relations");
+			if (relations == null) continue;
+			entry.getValue().relations = new Relations(entry.getValue(), related(relations.get("friends"), converted),
+					related(relations.get("sentFriendRequests"), converted), related(relations.get("receivedFriendRequests"), converted));
+		}
+		for (Account account : converted.values()) {
+			if (account.relations != null) account.relations.dropOneSided(); // only once both sides are there
+		}
+		return accounts;
+	}
+
+	private static Account account(Map<?, ?> fields) {
+		Map<?, ?> id = (Map<?, ?>) fields.get("id");
+		Object high = id == null ? null : id.get("mostSigBits"), low = id == null ? null : id.get("leastSigBits");
+		UUID uuid = high instanceof Number && low instanceof Number
+				? new UUID(((Number) high).longValue(), ((Number) low).longValue())
+				: Security.createUUID(); // json-io could not read the fields of UUID on some JVMs and wrote nulls
+		return new Account((String) fields.get("username"), uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+				time(fields.get("creationDate")), time(fields.get("lastLoginDate")),
+				Security.hexStringToByteArray((String) fields.get("salt")), Security.hexStringToByteArray((String) fields.get("passwordHash")));
+	}
+
+	// A Date field is written as its time, a Date in an untyped field as an object with the time as its value
+	private static long time(Object date) {
+		if (date instanceof Map) date = ((Map<?, ?>) date).get("value");
+		return date instanceof Number ? ((Number) date).longValue() : 0;
+	}
+
+	private static List<Account> related(Object list, Map<Map<?, ?>, Account> converted) {
+		List<Account> accounts = new ArrayList<>();
+		for (Object item : items(list)) {
+			Account account = converted.get(item);
+			if (account != null) accounts.add(account);
+		}
+		return accounts;
+	}
+
+	private static Object[] items(Object collection) {
+		if (collection instanceof Map) collection = ((Map<?, ?>) collection).get("@items");
+		return collection instanceof Object[] ? (Object[]) collection : new Object[0];
+	}
+}
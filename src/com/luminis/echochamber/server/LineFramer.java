@@ -0,0 +1,47 @@
+package com.luminis.echochamber.server;
+
+/**
+ * Splits a stream of characters into lines. Characters are appended in whatever chunks the socket delivers them;
+ * complete lines are taken out in order and an incomplete last line is kept until the rest arrives.
+ */
+class LineFramer {
+	private final int maxLineLength;
+	private char[] buffer = new char[256];
+	private int start = 0, end = 0;
+
+	LineFramer(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+
+	void append(char[] chars, int offset, int length) {
+		if (end + length > buffer.length) {
+			int remaining = end - start;
+			if (remaining + length > buffer.length) {
+				char[] larger = new char[Math.max(buffer.length * 2, remaining + length)];
+				System.arraycopy(buffer, start, larger, 0, remaining);
+				buffer = larger;
+			} else {
+				System.arraycopy(buffer, start, buffer, 0, remaining);
+			}
+			start = 0;
+			end = remaining;
+		}
+		System.arraycopy(chars, offset, buffer, end, length);
+		end += length;
+	}
+
+	// Returns the next complete line without its terminator, or null if there is none. Overlong lines are cut off.
+	String nextLine() {
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == '\n' || i - start == maxLineLength) {
+				int lineEnd = i;
+				if (lineEnd > start && buffer[lineEnd - 1] == '\r') lineEnd--;
+				String line = new String(buffer, start, lineEnd - start);
+				start = buffer[i] == '\n' ? i + 1 : i;
+				if (start == end) start = end = 0;
+				return line;
+			}
+		}
+		return null;
+	}
+}
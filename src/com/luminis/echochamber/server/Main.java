@@ -8,17 +8,34 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.config.Configurator;
 
-import java.io.BufferedWriter;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
 	// NB: log4j has its own shutdown hook, which we've disabled in the config. We shut log4j down using our method shutdownLog4j2()
 	static final Logger logger = LogManager.getLogger(ConnectionManager.class);
 
+	private static final Metrics.Histogram loadDuration = Metrics.histogram("persistence_load_duration_nanoseconds", "Time to read the accounts file");
+	private static final Metrics.Histogram saveDuration = Metrics.histogram("persistence_save_duration_nanoseconds", "Time to write the accounts file");
+	private static final Metrics.Counter bytesLoaded = Metrics.counter("persistence_loaded_bytes_total", "Bytes read from the accounts file");
+	private static final Metrics.Counter bytesSaved = Metrics.counter("persistence_saved_bytes_total", "Bytes written to the accounts file");
+	private static final Metrics.Histogram snapshotSize = Metrics.histogram("persistence_snapshot_bytes", "Size of each save of the accounts file");
+	private static final Metrics.Histogram snapshotCopyDuration = Metrics.histogram("persistence_snapshot_copy_duration_nanoseconds", "Time to copy the live accounts for a save");
+
+	private static ScheduledExecutorService snapshots; // background saves of the accounts file, without a table
+
 	public static void main(String[] args) {
 		if (args.length != 2) {
 			System.out.println("Usage: server <port> <accounts file>");
@@ -28,20 +45,25 @@ public class Main {
 			int port = Integer.parseInt(args[0]);
 			Path file = Paths.get(args[1]);
 
-			AccountCollection accounts = readAccounts(file);
+			AccountCollection accounts = Settings.accountTable == null ? readAccounts(file) : openAccountTable(file);
 			Server server = new Server(accounts);
-			ConnectionManager connectionManager = new ConnectionManager(port, server);
+			SSLContext sslContext = Settings.tlsKeystore == null ? null : createSslContext();
+			ConnectionManager connectionManager = new ConnectionManager(port, server, sslContext);
+			if (!accounts.isMapped() && Settings.snapshotInterval > 0) scheduleSnapshots(accounts, file);
+			MetricsEndpoint metricsEndpoint = Settings.metricsPort > 0 ? new MetricsEndpoint(Settings.metricsPort) : null;
+			if (metricsEndpoint != null) metricsEndpoint.start();
 
 			Runtime.getRuntime().addShutdownHook(new Thread("Shutdown") {
 				@Override
 				public void run() {
-					shutdownServer(server);
-					writeAccounts(accounts, file);
-					shutdownLog4j2();
+					if (server.isActive()) Main.logger.warn("Forced server shutdown initiated");
+					stopServer(server, accounts, file, metricsEndpoint);
 				}
 			});
 
-			connectionManager.start();
+			connectionManager.start(); // returns once the server no longer accepts connections
+			stopServer(server, accounts, file, metricsEndpoint);
+			System.exit(0); // sessions that missed the drain deadline must not keep the process alive
 
 		} catch (NumberFormatException e) {
 			System.err.println("Argument" + args[0] + " must be an integer.");
@@ -54,31 +76,134 @@ public class Main {
 		}
 	}
 
-	private static void shutdownServer(Server server) {
-		if (server.isActive()) {
-			Main.logger.warn("Forced server shutdown initiated");
-			server.shutdown();
+	private static SSLContext createSslContext() {
+		try {
+			return Tls.serverContext(Paths.get(Settings.tlsKeystore), Settings.tlsKeystorePassword.toCharArray());
+		} catch (GeneralSecurityException | IOException ex) {
+			System.out.println("Can't set up TLS with keystore '" + Settings.tlsKeystore + "': " + ex.getMessage());
+			System.exit(1);
+			return null;
 		}
 	}
 
-	private static AccountCollection readAccounts(Path file) throws IOException, JsonIoException {
+	private static boolean stopped = false;
+
+	// Runs once, either on the main thread after /shutdown or from the shutdown hook on a signal. The snapshot is
+	// taken after the server has quiesced, so no session changes the accounts while they are written.
+	private static synchronized void stopServer(Server server, AccountCollection accounts, Path file, MetricsEndpoint metricsEndpoint) {
+		if (stopped) return;
+		stopped = true;
+		server.quiesce(Settings.shutdownDrainTimeout);
+		if (metricsEndpoint != null) metricsEndpoint.stop();
+		if (snapshots != null) stopSnapshots();
+		if (accounts.isMapped()) {
+			accounts.closeTable();
+		} else {
+			writeAccounts(accounts, file);
+		}
+		shutdownLog4j2();
+	}
+
+	static AccountCollection readAccounts(Path file) throws IOException, JsonIoException {
 		logger.info("Reading accounts...");
-		AccountCollection accounts = (AccountCollection) JsonReader.jsonToJava(
-				String.join("", Files.readAllLines(file, StandardCharsets.UTF_8))
-		);
-		logger.info("Successfully imported " + accounts.size() + " accounts");
+		long start = System.nanoTime();
+		String json = String.join("", Files.readAllLines(file, StandardCharsets.UTF_8));
+		AccountCollection accounts;
+		if (LegacyAccounts.matches(json)) {
+			logger.info("Converting accounts file from the old format");
+			accounts = LegacyAccounts.convert(json);
+		} else {
+			accounts = (AccountCollection) JsonReader.jsonToJava(json);
+		}
+		loadDuration.recordSince(start);
+		bytesLoaded.add(json.length());
+		logger.info("Successfully imported {} accounts", accounts.size());
+		return accounts;
+	}
+
+	// The accounts file is only read to fill a new, empty table
+	static AccountCollection openAccountTable(Path file) throws IOException, JsonIoException {
+		Path path = Paths.get(Settings.accountTable);
+		logger.info("Opening account table {}", path);
+		MappedAccountTable table = MappedAccountTable.open(path, Settings.accountTableCapacity);
+		AccountCollection accounts = new AccountCollection(table);
+		if (table.size() == 0 && Files.exists(file)) {
+			AccountCollection imported = readAccounts(file);
+			for (Account account : imported) {
+				accounts.add(account);
+			}
+			for (Account account : imported) {
+				account.relationsChanged();
+			}
+		}
+		logger.info("Account table holds {} accounts", table.size());
 		return accounts;
 	}
 
-	private static void writeAccounts(AccountCollection accounts, Path file) {
+	// Saves the accounts on a background thread whenever enough changed since the last save. They are copied without
+	// locking the server, see AccountCollection.permanentSnapshot().
+	private static void scheduleSnapshots(AccountCollection accounts, Path file) {
+		snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long[] saved = {AccountCollection.changes()};
+		snapshots.scheduleWithFixedDelay(() -> {
+			long changes = AccountCollection.changes(); // read before the copy, so changes during it count for the next save
+			try {
+				if (changes - saved[0] >= Settings.snapshotThreshold && writeAccounts(accounts, file)) {
+					saved[0] = changes;
+				}
+			} catch (RuntimeException e) { // would cancel all later saves
+				logger.error("Background save of the accounts failed", e);
+			}
+		}, Settings.snapshotInterval, Settings.snapshotInterval, TimeUnit.SECONDS);
+	}
+
+	// Lets a save in progress finish, so it cannot overwrite the final one
+	private static void stopSnapshots() {
+		snapshots.shutdown();
+		try {
+			if (!snapshots.awaitTermination(30, TimeUnit.SECONDS)) logger.warn("Background save of the accounts did not finish");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static boolean writeAccounts(AccountCollection accounts, Path file) {
 		logger.info("Saving accounts...");
 		try {
-			BufferedWriter out = Files.newBufferedWriter(file);
-			out.write(JsonWriter.formatJson(JsonWriter.objectToJson(accounts)));
-			out.close();
-			logger.info("Accounts saved successfully");
+			long start = System.nanoTime();
+			AccountCollection snapshot = accounts.permanentSnapshot();
+			snapshotCopyDuration.recordSince(start);
+			byte[] json = JsonWriter.formatJson(JsonWriter.objectToJson(snapshot)).getBytes(StandardCharsets.UTF_8);
+			writeAtomically(file, json);
+			saveDuration.recordSince(start);
+			bytesSaved.add(json.length);
+			snapshotSize.record(json.length);
+			logger.info("Saved {} accounts, {} bytes", snapshot.size(), json.length);
+			return true;
 		} catch (IOException ex) {
-			logger.error("Cannot write to file " + file.getFileName());
+			logger.error("Cannot write to file {}: {}", file.getFileName(), ex.getMessage());
+			return false;
+		}
+	}
+
+	// Writes a temporary file next to the target, forces it to disk and renames it over the target. After a crash the
+	// file is either the previous or the new version, never a partial one.
+	private static void writeAtomically(Path file, byte[] bytes) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) channel.write(buffer);
+			channel.force(true);
+		}
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+			directory.force(true); // makes the rename itself durable
+		} catch (IOException e) {
+			// not every platform can open a directory, the rename is still atomic there
 		}
 	}
 
@@ -0,0 +1,395 @@
+package com.luminis.echochamber.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Off-heap table of permanent accounts. Accounts are fixed-size records in a memory-mapped file, their relations are
+ * linked lists of fixed-size edge records in a second file, and an open-addressing index from user name to record is
+ * mapped from a third file. None of it is on the Java heap, so heap size and GC pauses do not depend on the number of
+ * registered accounts, and opening the table reads nothing up front. The index is only trusted when the table was
+ * closed cleanly, otherwise it is rebuilt by scanning the records.
+ *
+ * Not thread safe, AccountCollection serializes all access.
+ */
+class MappedAccountTable implements Closeable {
+	static final int MAX_NAME_LENGTH = 64; // bytes of UTF-8
+	static final int FRIEND = 0, SENT = 1, RECEIVED = 2;
+
+	// Account record layout
+	private static final int FLAGS = 0, NAME_LENGTH = 1, NAME = 2, ID_HIGH = 72, ID_LOW = 80, CREATED = 88,
+			LAST_LOGIN = 96, SALT = 104, HASH = 120, FIRST_EDGE = 152, RECORD_SIZE = 160;
+	private static final byte USED = 1;
+	private static final int SALT_LENGTH = 16, HASH_LENGTH = 32;
+
+	// Edge record layout
+	private static final int TARGET = 0, KIND = 4, NEXT = 8, EDGE_SIZE = 12;
+
+	private static final int NONE = -1;
+	private static final int EMPTY = 0, TOMBSTONE = -1; // index slots hold record + 1
+
+	// Index file header, followed by the slots
+	private static final int INDEX_MAGIC = 0, SLOTS = 4, USED_SLOTS = 8, LIVE = 12, RECORDS = 16, CLEAN = 20,
+			INDEX_HEADER = 24;
+	private static final int INDEX_FILE = 0xEC0A0003;
+
+	private final Region records;
+	private final Region edges;
+	private final FileChannel indexChannel;
+	private MappedByteBuffer index;
+	private int slots, usedSlots, live;
+
+	private MappedAccountTable(Region records, Region edges, FileChannel indexChannel) throws IOException {
+		this.records = records;
+		this.edges = edges;
+		this.indexChannel = indexChannel;
+		if (!openIndex()) rebuildIndex();
+		index.putInt(CLEAN, 0); // until close, so that a crash leaves an index that is rebuilt on the next open
+		index.force();
+	}
+
+	// Opens the table at the given path, creating it if needed. Edges and the index are kept in files next to it.
+	static MappedAccountTable open(Path path, int initialCapacity) throws IOException {
+		Region records = new Region(path, 0xEC0A0001, RECORD_SIZE, FIRST_EDGE, initialCapacity);
+		Region edges = new Region(Paths.get(path + ".edges"), 0xEC0A0002, EDGE_SIZE, NEXT, initialCapacity * 2);
+		FileChannel index = FileChannel.open(Paths.get(path + ".index"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return new MappedAccountTable(records, edges, index);
+	}
+
+	int size() {
+		return live;
+	}
+
+	// Returns the record of the account with this name, or -1
+	int find(String username) {
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		int mask = slots - 1;
+		for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+			int entry = slot(slot);
+			if (entry == EMPTY) return NONE;
+			if (entry != TOMBSTONE && nameEquals(entry - 1, name)) return entry - 1;
+		}
+	}
+
+	static boolean fits(String username) {
+		return username.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_LENGTH;
+	}
+
+	int insert(Account account) {
+		byte[] name = account.username().getBytes(StandardCharsets.UTF_8);
+		if (name.length > MAX_NAME_LENGTH) throw new IllegalArgumentException("User name too long for the account table");
+		if ((usedSlots + 1) * 2 > slots) rebuildIndex();
+
+		int record = records.allocate();
+		int offset = records.offset(record);
+		ByteBuffer buffer = records.buffer;
+		buffer.put(offset + FLAGS, USED);
+		buffer.put(offset + NAME_LENGTH, (byte) name.length);
+		put(buffer, offset + NAME, name);
+		buffer.putLong(offset + ID_HIGH, account.idHigh);
+		buffer.putLong(offset + ID_LOW, account.idLow);
+		buffer.putLong(offset + CREATED, account.creationTime);
+		buffer.putInt(offset + FIRST_EDGE, NONE);
+		update(record, account);
+
+		live++;
+		addToIndex(record, name);
+		return record;
+	}
+
+	// Writes the mutable fields of an account
+	void update(int record, Account account) {
+		int offset = records.offset(record);
+		records.buffer.putLong(offset + LAST_LOGIN, account.lastLoginTime);
+		put(records.buffer, offset + SALT, account.salt);
+		put(records.buffer, offset + HASH, account.passwordHash);
+	}
+
+	// Also removes the edges of other records to this one, so that an account that reuses the record does not inherit
+	// them. Relations are stored on both sides, so the record's own edges lead to all of them.
+	void delete(int record) {
+		byte[] name = name(record);
+		int mask = slots - 1;
+		for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+			int entry = slot(slot);
+			if (entry == EMPTY) break;
+			if (entry == record + 1) {
+				setSlot(slot, TOMBSTONE);
+				break;
+			}
+		}
+		for (int edge = records.buffer.getInt(records.offset(record) + FIRST_EDGE); edge != NONE; edge = edges.buffer.getInt(edges.offset(edge) + NEXT)) {
+			int target = edges.buffer.getInt(edges.offset(edge) + TARGET);
+			if (target != record && isUsed(target)) freeEdges(target, record);
+		}
+		freeEdges(record);
+		records.buffer.put(records.offset(record) + FLAGS, (byte) 0);
+		records.free(record);
+		live--;
+	}
+
+	Account load(int record) {
+		int offset = records.offset(record);
+		ByteBuffer buffer = records.buffer;
+		return new Account(
+				new String(name(record), StandardCharsets.UTF_8),
+				buffer.getLong(offset + ID_HIGH), buffer.getLong(offset + ID_LOW),
+				buffer.getLong(offset + CREATED), buffer.getLong(offset + LAST_LOGIN),
+				get(buffer, offset + SALT, SALT_LENGTH), get(buffer, offset + HASH, HASH_LENGTH));
+	}
+
+	// Replaces all relations of a record. The lists are records of related accounts, per kind.
+	void writeRelations(int record, int[] friends, int[] sent, int[] received) {
+		freeEdges(record);
+		addEdges(record, FRIEND, friends);
+		addEdges(record, SENT, sent);
+		addEdges(record, RECEIVED, received);
+	}
+
+	// Records related to this one by the given kind of relation. Edges to deleted accounts are skipped.
+	int[] relations(int record, int kind) {
+		int[] targets = new int[4];
+		int count = 0;
+		for (int edge = records.buffer.getInt(records.offset(record) + FIRST_EDGE); edge != NONE; edge = edges.buffer.getInt(edges.offset(edge) + NEXT)) {
+			int offset = edges.offset(edge);
+			int target = edges.buffer.getInt(offset + TARGET);
+			if (edges.buffer.getInt(offset + KIND) == kind && isUsed(target)) {
+				if (count == targets.length) targets = Arrays.copyOf(targets, count * 2);
+				targets[count++] = target;
+			}
+		}
+		return Arrays.copyOf(targets, count);
+	}
+
+	void forEach(IntConsumer action) {
+		for (int record = 0; record < records.count(); record++) {
+			if (isUsed(record)) action.accept(record);
+		}
+	}
+
+	void force() {
+		records.buffer.force();
+		edges.buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		index.putInt(USED_SLOTS, usedSlots);
+		index.putInt(LIVE, live);
+		index.putInt(RECORDS, records.count());
+		index.putInt(CLEAN, 1);
+		index.force();
+		records.channel.close();
+		edges.channel.close();
+		indexChannel.close();
+	}
+
+	private boolean isUsed(int record) {
+		return record < records.count() && records.buffer.get(records.offset(record) + FLAGS) == USED;
+	}
+
+	private void addEdges(int record, int kind, int[] targets) {
+		int offset = records.offset(record);
+		for (int target : targets) {
+			int edge = edges.allocate();
+			int edgeOffset = edges.offset(edge);
+			edges.buffer.putInt(edgeOffset + TARGET, target);
+			edges.buffer.putInt(edgeOffset + KIND, kind);
+			edges.buffer.putInt(edgeOffset + NEXT, records.buffer.getInt(offset + FIRST_EDGE));
+			records.buffer.putInt(offset + FIRST_EDGE, edge);
+		}
+	}
+
+	private void freeEdges(int record) {
+		int offset = records.offset(record);
+		int edge = records.buffer.getInt(offset + FIRST_EDGE);
+		while (edge != NONE) {
+			int next = edges.buffer.getInt(edges.offset(edge) + NEXT);
+			edges.free(edge);
+			edge = next;
+		}
+		records.buffer.putInt(offset + FIRST_EDGE, NONE);
+	}
+
+	// Frees the edges of a record that point to the target
+	private void freeEdges(int record, int target) {
+		int offset = records.offset(record);
+		int previous = NONE;
+		int edge = records.buffer.getInt(offset + FIRST_EDGE);
+		while (edge != NONE) {
+			int edgeOffset = edges.offset(edge);
+			int next = edges.buffer.getInt(edgeOffset + NEXT);
+			if (edges.buffer.getInt(edgeOffset + TARGET) == target) {
+				if (previous == NONE) records.buffer.putInt(offset + FIRST_EDGE, next);
+				else edges.buffer.putInt(edges.offset(previous) + NEXT, next);
+				edges.free(edge);
+			} else {
+				previous = edge;
+			}
+			edge = next;
+		}
+	}
+
+	private byte[] name(int record) {
+		int offset = records.offset(record);
+		return get(records.buffer, offset + NAME, records.buffer.get(offset + NAME_LENGTH));
+	}
+
+	private boolean nameEquals(int record, byte[] name) {
+		int offset = records.offset(record);
+		if (records.buffer.get(offset + NAME_LENGTH) != name.length) return false;
+		for (int i = 0; i < name.length; i++) {
+			if (records.buffer.get(offset + NAME + i) != name[i]) return false;
+		}
+		return true;
+	}
+
+	// Maps the index as it was left by close, if that matches the records
+	private boolean openIndex() throws IOException {
+		if (indexChannel.size() < INDEX_HEADER) return false;
+		MappedByteBuffer header = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER);
+		if (header.getInt(INDEX_MAGIC) != INDEX_FILE || header.getInt(CLEAN) != 1 || header.getInt(RECORDS) != records.count()) return false;
+		slots = header.getInt(SLOTS);
+		if (indexChannel.size() < INDEX_HEADER + (long) slots * 4) return false;
+		usedSlots = header.getInt(USED_SLOTS);
+		live = header.getInt(LIVE);
+		index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) slots * 4);
+		return true;
+	}
+
+	// Sized for at most half full, counting tombstones, so probe sequences stay short
+	private void rebuildIndex() {
+		live = 0;
+		forEach(record -> live++);
+		slots = Integer.highestOneBit(Math.max(16, live * 4 - 1)) << 1;
+		try {
+			index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) slots * 4);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (int slot = 0; slot < slots; slot++) {
+			setSlot(slot, EMPTY); // the file may still hold an older index
+		}
+		index.putInt(INDEX_MAGIC, INDEX_FILE);
+		index.putInt(SLOTS, slots);
+		usedSlots = 0;
+		forEach(record -> addToIndex(record, name(record)));
+	}
+
+	private int slot(int slot) {
+		return index.getInt(INDEX_HEADER + slot * 4);
+	}
+
+	private void setSlot(int slot, int entry) {
+		index.putInt(INDEX_HEADER + slot * 4, entry);
+	}
+
+	private void addToIndex(int record, byte[] name) {
+		int mask = slots - 1;
+		int slot = hash(name) & mask;
+		while (slot(slot) != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		setSlot(slot, record + 1);
+		usedSlots++;
+	}
+
+	// FNV-1a, with the high bits mixed down as the index only uses the low ones
+	private static int hash(byte[] name) {
+		int hash = 0x811C9DC5;
+		for (byte b : name) {
+			hash = (hash ^ (b & 0xFF)) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static void put(ByteBuffer buffer, int offset, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(offset + i, bytes[i]);
+		}
+	}
+
+	private static byte[] get(ByteBuffer buffer, int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return bytes;
+	}
+
+	// A file of fixed-size elements behind a small header, with a free list linked through an int field of deleted
+	// elements. Grows by doubling, which means mapping the file again.
+	private static class Region {
+		private static final int MAGIC = 0, COUNT = 4, FREE = 8, HEADER = 16;
+
+		final FileChannel channel;
+		final int elementSize;
+		final int link;
+		MappedByteBuffer buffer;
+		int capacity;
+
+		Region(Path path, int magic, int elementSize, int link, int initialCapacity) throws IOException {
+			this.elementSize = elementSize;
+			this.link = link;
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long existing = channel.size();
+			capacity = existing > HEADER ? (int) ((existing - HEADER) / elementSize) : Math.max(16, initialCapacity);
+			map();
+			if (existing <= HEADER) {
+				buffer.putInt(MAGIC, magic);
+				buffer.putInt(COUNT, 0);
+				buffer.putInt(FREE, NONE);
+			} else if (buffer.getInt(MAGIC) != magic) {
+				throw new IOException(path + " is not an account table file");
+			}
+		}
+
+		int count() {
+			return buffer.getInt(COUNT);
+		}
+
+		int offset(int element) {
+			return HEADER + element * elementSize;
+		}
+
+		int allocate() {
+			int free = buffer.getInt(FREE);
+			if (free != NONE) {
+				buffer.putInt(FREE, buffer.getInt(offset(free) + link));
+				return free;
+			}
+			int element = count();
+			if (element == capacity) {
+				if ((long) capacity * 2 * elementSize + HEADER > Integer.MAX_VALUE) throw new IllegalStateException("Account table full");
+				capacity *= 2;
+				try {
+					map();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			buffer.putInt(COUNT, element + 1);
+			return element;
+		}
+
+		void free(int element) {
+			buffer.putInt(offset(element) + link, buffer.getInt(FREE));
+			buffer.putInt(FREE, element);
+		}
+
+		private void map() throws IOException {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * elementSize);
+		}
+	}
+}
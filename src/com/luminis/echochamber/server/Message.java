@@ -0,0 +1,108 @@
+package com.luminis.echochamber.server;
+
+import com.luminis.echochamber.protocol.Frame;
+import com.luminis.echochamber.protocol.FrameType;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Outbound message. Both wire representations are rendered at most once and then shared, so a broadcast is encoded
+ * once no matter how many recipients it has. A batch is several messages that are queued and written as one.
+ */
+class Message {
+	final Frame frame; // null for a batch
+	private final List<Message> batch;
+	private String text;
+	private byte[] encoded;
+
+	private Message(Frame frame) {
+		this.frame = frame;
+		batch = null;
+	}
+
+	private Message(List<Message> batch) {
+		frame = null;
+		this.batch = batch;
+	}
+
+	// Text lines, or binary frames, back to back
+	static Message batch(List<Message> messages) {
+		return new Message(messages);
+	}
+
+	static Message reply(String text) {
+		return new Message(Frame.reply(text));
+	}
+
+	// The message of the exception, or its name if it has none, like a NullPointerException
+	static Message error(Exception e) {
+		String text = e.getMessage();
+		return new Message(Frame.error(text != null ? text : e.getClass().getSimpleName()));
+	}
+
+	static Message system(String text) {
+		return new Message(Frame.system(text));
+	}
+
+	static Message shout(Channel channel, String sender, String text) {
+		return new Message(Frame.shout(channel.name(), sender, text));
+	}
+
+	static Message whisper(String sender, String text) {
+		return new Message(Frame.whisper(sender, text));
+	}
+
+	static Message presence(Channel channel, String user, boolean joined) {
+		return new Message(Frame.presence(channel.name(), user, joined));
+	}
+
+	FrameType type() {
+		return frame.type;
+	}
+
+	// Text protocol representation, with the ANSI colors the text protocol has always used
+	String text() {
+		if (text == null && batch != null) {
+			text = batch.stream().map(Message::text).collect(Collectors.joining("\n"));
+		} else if (text == null) {
+			switch (frame.type) {
+				case SHOUT:
+					// tagged unless it is the default channel, the only one for most clients
+					text = (frame.channel.equals(Server.defaultChannel.name()) ? "" : "[" + frame.channel + "] ")
+							+ TextColors.colorUserName(frame.user) + "> " + frame.text;
+					break;
+				case WHISPER:
+					text = frame.user + " whispers: " + frame.text;
+					break;
+				case PRESENCE:
+					text = "User " + TextColors.colorUserName(frame.user) + (frame.joined ? " joined" : " left") + " channel [" + frame.channel + "]";
+					break;
+				default:
+					text = frame.text;
+			}
+		}
+		return text;
+	}
+
+	// Binary protocol representation
+	byte[] encoded() {
+		if (encoded == null && batch != null) {
+			ByteArrayOutputStream frames = new ByteArrayOutputStream();
+			for (Message message : batch) {
+				byte[] bytes = message.encoded();
+				frames.write(bytes, 0, bytes.length);
+			}
+			encoded = frames.toByteArray();
+		} else if (encoded == null) {
+			encoded = frame.encode();
+		}
+		return encoded;
+	}
+
+	@Override
+	public String toString() {
+		return text();
+	}
+}
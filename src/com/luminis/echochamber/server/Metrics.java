@@ -0,0 +1,217 @@
+package com.luminis.echochamber.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Lightweight metrics registry. Metrics are looked up once, typically into a static final field, after which recording
+ * is a handful of lock-free atomic operations. Durations are recorded in nanoseconds.
+ */
+class Metrics {
+	private static final Map<String, Metric> registry = new ConcurrentSkipListMap<>();
+	private static final double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+
+	static abstract class Metric {
+		final String name, labels, help;
+
+		Metric(String name, String labels, String help) {
+			this.name = name;
+			this.labels = labels;
+			this.help = help;
+		}
+
+		String id() {
+			return labels.isEmpty() ? name : name + "{" + labels + "}";
+		}
+
+		abstract String type();
+		abstract void expose(StringBuilder out);
+	}
+
+	static final class Counter extends Metric {
+		private final LongAdder value = new LongAdder();
+
+		private Counter(String name, String labels, String help) {
+			super(name, labels, help);
+		}
+
+		void increment() {
+			value.increment();
+		}
+
+		void add(long amount) {
+			value.add(amount);
+		}
+
+		long get() {
+			return value.sum();
+		}
+
+		String type() {
+			return "counter";
+		}
+
+		void expose(StringBuilder out) {
+			out.append(id()).append(' ').append(get()).append('\n');
+		}
+	}
+
+	static final class Gauge extends Metric {
+		private final LongSupplier supplier;
+
+		private Gauge(String name, String labels, String help, LongSupplier supplier) {
+			super(name, labels, help);
+			this.supplier = supplier;
+		}
+
+		long get() {
+			return supplier.getAsLong();
+		}
+
+		String type() {
+			return "gauge";
+		}
+
+		void expose(StringBuilder out) {
+			out.append(id()).append(' ').append(get()).append('\n');
+		}
+	}
+
+	/**
+	 * Log-linear histogram in the style of HdrHistogram: every power of two is split into 32 linear sub-buckets, which
+	 * bounds the relative error of reported values to about 3% over the full range of a long.
+	 */
+	static final class Histogram extends Metric {
+		private static final int SUB_BUCKET_BITS = 5;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		private Histogram(String name, String labels, String help) {
+			super(name, labels, help);
+		}
+
+		void record(long value) {
+			if (value < 0) value = 0;
+			counts.incrementAndGet(index(value));
+			count.increment();
+			sum.add(value);
+			long currentMax;
+			while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+				// retry
+			}
+		}
+
+		void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		double mean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+
+		long valueAtQuantile(double quantile) {
+			long total = count.sum();
+			if (total == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(quantile * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts.get(i);
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		static int index(long value) {
+			if (value < SUB_BUCKETS) return (int) value;
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+			return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+		}
+
+		private static long upperBound(int index) {
+			if (index < SUB_BUCKETS) return index;
+			int shift = index / SUB_BUCKETS - 1;
+			long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+			return lowerBound + (1L << shift) - 1;
+		}
+
+		String type() {
+			return "summary";
+		}
+
+		void expose(StringBuilder out) {
+			String separator = labels.isEmpty() ? "" : labels + ",";
+			for (double quantile : quantiles) {
+				out.append(name).append("{").append(separator).append("quantile=\"").append(quantile).append("\"} ")
+						.append(valueAtQuantile(quantile)).append('\n');
+			}
+			String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+			out.append(name).append("_sum").append(suffix).append(' ').append(sum.sum()).append('\n');
+			out.append(name).append("_count").append(suffix).append(' ').append(count()).append('\n');
+		}
+	}
+
+	static Counter counter(String name, String help) {
+		return counter(name, "", help);
+	}
+
+	static Counter counter(String name, String labels, String help) {
+		return (Counter) registry.computeIfAbsent(key(name, labels), k -> new Counter(name, labels, help));
+	}
+
+	static Histogram histogram(String name, String help) {
+		return histogram(name, "", help);
+	}
+
+	static Histogram histogram(String name, String labels, String help) {
+		return (Histogram) registry.computeIfAbsent(key(name, labels), k -> new Histogram(name, labels, help));
+	}
+
+	static Gauge gauge(String name, String help, LongSupplier supplier) {
+		Gauge gauge = new Gauge(name, "", help, supplier);
+		registry.put(key(name, ""), gauge); // a new supplier replaces the old one
+		return gauge;
+	}
+
+	static String label(String name, String value) {
+		return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	// Prometheus text exposition format
+	static String expose() {
+		StringBuilder out = new StringBuilder();
+		String previous = null;
+		for (Metric metric : registry.values()) {
+			if (!metric.name.equals(previous)) {
+				out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+				out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+				previous = metric.name;
+			}
+			metric.expose(out);
+		}
+		return out.toString();
+	}
+
+	private static String key(String name, String labels) {
+		return name + '\u0000' + labels; // keeps all series of one metric adjacent in the sorted registry
+	}
+}
@@ -0,0 +1,37 @@
+package com.luminis.echochamber.server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the metrics registry in Prometheus text format on http://localhost:<port>/metrics
+ */
+class MetricsEndpoint {
+	private final HttpServer httpServer;
+
+	MetricsEndpoint(int port) throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/metrics", exchange -> {
+			byte[] body = Metrics.expose().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+	}
+
+	void start() {
+		httpServer.start();
+		Main.logger.info("Metrics available at http://localhost:{}/metrics", httpServer.getAddress().getPort());
+	}
+
+	void stop() {
+		httpServer.stop(0);
+	}
+}
@@ -0,0 +1,92 @@
+package com.luminis.echochamber.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Outbound messages of a session, in priority lanes: server notices first, then replies and whispers, then channel
+ * traffic. The writer takes them by weighted round robin, so a reply or a shutdown warning does not wait behind a
+ * chat backlog, while chat still gets its share when the other lanes are busy. Each lane is FIFO.
+ * Any thread may add, only the writer of the connection takes. It waits in await() and is woken by the next add.
+ */
+class OutboundQueue {
+	static final int CONTROL = 0, DIRECT = 1, CHAT = 2;
+	private static final int[] WEIGHTS = {16, 4, 1}; // messages per turn of each lane
+
+	private final Queue<Message>[] lanes;
+	private volatile int depth; // ConcurrentLinkedQueue.size() is O(n)
+	private static final AtomicIntegerFieldUpdater<OutboundQueue> depthUpdater = AtomicIntegerFieldUpdater.newUpdater(OutboundQueue.class, "depth");
+	private volatile Thread waiting; // the taking thread, while it waits in await()
+	private int lane; // whose turn it is, only used by the taking thread
+	private int taken; // taken from that lane this turn
+
+	private static final String[] LANE_NAMES = {"control", "direct", "chat"};
+	private static final Metrics.Counter[] queued = new Metrics.Counter[LANE_NAMES.length];
+	static {
+		for (int i = 0; i < queued.length; i++) {
+			queued[i] = Metrics.counter("client_outbound_messages_total", Metrics.label("lane", LANE_NAMES[i]), "Messages queued for sessions, by lane");
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	OutboundQueue() {
+		lanes = new Queue[WEIGHTS.length];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new ConcurrentLinkedQueue<>();
+		}
+	}
+
+	static int laneOf(Message message) {
+		if (message.frame == null) return CHAT; // a batch of channel messages
+		switch (message.type()) {
+			case SYSTEM:
+				return CONTROL;
+			case SHOUT:
+			case PRESENCE:
+				return CHAT;
+			default:
+				return DIRECT;
+		}
+	}
+
+	// Returns the depth after adding
+	int add(Message message) {
+		int lane = laneOf(message);
+		lanes[lane].add(message);
+		queued[lane].increment();
+		int depth = depthUpdater.incrementAndGet(this);
+		Thread taker = waiting; // read after the depth is raised, and await() checks the depth after setting it
+		if (taker != null) LockSupport.unpark(taker);
+		return depth;
+	}
+
+	// Returns when a message may have been added, or when the taking thread is unparked otherwise
+	void await() {
+		waiting = Thread.currentThread();
+		if (isEmpty()) LockSupport.park(this);
+		waiting = null;
+	}
+
+	boolean isEmpty() {
+		return depth == 0;
+	}
+
+	Message poll() {
+		// one more step than there are lanes, so the lane whose turn it was gets a fresh turn before giving up
+		for (int i = 0; i <= lanes.length; i++) {
+			if (taken < WEIGHTS[lane]) {
+				Message message = lanes[lane].poll();
+				if (message != null) {
+					taken++;
+					depthUpdater.decrementAndGet(this);
+					return message;
+				}
+			}
+			lane = (lane + 1) % lanes.length;
+			taken = 0;
+		}
+		return null;
+	}
+}
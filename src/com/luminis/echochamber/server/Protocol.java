@@ -0,0 +1,106 @@
+package com.luminis.echochamber.server;
+
+import com.luminis.echochamber.protocol.Frame;
+import com.luminis.echochamber.protocol.FrameDecoder;
+import com.luminis.echochamber.protocol.FrameType;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Wire format of a connection. Reading hands every complete command to a consumer; writing buffers until flush().
+ */
+interface Protocol {
+	// Reads what is available and passes each complete command line on, in order. Returns false at end of stream.
+	boolean read(Consumer<String> commands) throws IOException;
+	void write(Message message) throws IOException;
+	void flush() throws IOException;
+	void close() throws IOException; // also releases compression state, may be called again
+}
+
+// Newline separated text with ANSI colors
+class TextProtocol implements Protocol {
+	private final Reader in;
+	private final Writer out;
+	private final LineFramer framer = new LineFramer(Settings.maxLineLength);
+	private final char[] buffer = new char[8192];
+
+	TextProtocol(InputStream in, OutputStream out) {
+		this.in = new InputStreamReader(in, StandardCharsets.UTF_8);
+		this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+	}
+
+	public boolean read(Consumer<String> commands) throws IOException {
+		int read = in.read(buffer); // takes whatever is available, which may be many lines
+		if (read < 0) return false;
+		framer.append(buffer, 0, read);
+		String line;
+		while ((line = framer.nextLine()) != null) {
+			commands.accept(line);
+		}
+		return true;
+	}
+
+	public void write(Message message) throws IOException {
+		out.write(message.text());
+		out.write('\n');
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		try {
+			out.close();
+		} finally {
+			in.close();
+		}
+	}
+}
+
+// Length prefixed frames, see Frame
+class BinaryProtocol implements Protocol {
+	private final InputStream in;
+	private final OutputStream out;
+	private final FrameDecoder decoder = new FrameDecoder(Settings.maxLineLength + 16);
+	private final byte[] buffer = new byte[8192];
+
+	BinaryProtocol(InputStream in, OutputStream out) {
+		this.in = in;
+		this.out = new BufferedOutputStream(out, 8192);
+	}
+
+	public boolean read(Consumer<String> commands) throws IOException {
+		int read = in.read(buffer);
+		if (read < 0) return false;
+		decoder.append(buffer, 0, read);
+		try {
+			Frame frame;
+			while ((frame = decoder.next()) != null) {
+				if (frame.type == FrameType.COMMAND) {
+					commands.accept(frame.text);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Protocol error: " + e.getMessage());
+		}
+		return true;
+	}
+
+	public void write(Message message) throws IOException {
+		out.write(message.encoded());
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+	public void close() throws IOException {
+		try {
+			out.close();
+		} finally {
+			in.close();
+		}
+	}
+}
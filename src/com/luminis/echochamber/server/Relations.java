@@ -2,6 +2,8 @@ package com.luminis.echochamber.server;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 public class Relations {
 	private Account account;
@@ -17,6 +19,51 @@ public class Relations {
 		receivedFriendRequests = new AccountCollection();
 	}
 
+	// Relations read back from an account table or an old accounts file
+	Relations(Account account, List<Account> friends, List<Account> sentFriendRequests, List<Account> receivedFriendRequests) {
+		this(account);
+		this.friends.addAll(friends);
+		this.sentFriendRequests.addAll(sentFriendRequests);
+		this.receivedFriendRequests.addAll(receivedFriendRequests);
+	}
+
+	// Account table records of the related accounts, per kind of relation. Only takes the locks of the lists, so it can
+	// be called while another Relations is locked. Temporary accounts have no record and are left out.
+	int[][] records() {
+		return new int[][]{records(friends), records(sentFriendRequests), records(receivedFriendRequests)};
+	}
+
+	private static int[] records(AccountCollection accounts) {
+		synchronized (accounts) {
+			return accounts.stream().filter(account -> account.owner != null && account.record >= 0).mapToInt(account -> account.record).toArray();
+		}
+	}
+
+	// For a snapshot of the accounts: the same relations between the copies. Accounts that were not copied, like ones
+	// deleted in the meantime, are left out.
+	Relations copy(Account account, Map<Account, Account> copies) {
+		return new Relations(account, copies(friends, copies), copies(sentFriendRequests, copies), copies(receivedFriendRequests, copies));
+	}
+
+	// Only for copies, which nobody else uses yet: drops what the other side does not have
+	void dropOneSided() {
+		friends.removeIf(other -> other.relations == null || !other.relations.friends.contains(account));
+		sentFriendRequests.removeIf(other -> other.relations == null || !other.relations.receivedFriendRequests.contains(account));
+		receivedFriendRequests.removeIf(other -> other.relations == null || !other.relations.sentFriendRequests.contains(account));
+	}
+
+	// Under the lock of the list, like records(), rather than through a snapshot that would then stay cached
+	private static List<Account> copies(AccountCollection accounts, Map<Account, Account> copies) {
+		List<Account> result = new ArrayList<>();
+		synchronized (accounts) {
+			for (Account account : accounts) {
+				Account copy = copies.get(account);
+				if (copy != null) result.add(copy);
+			}
+		}
+		return result;
+	}
+
 	synchronized public void add(Account target) {
 		if (target != null ) {
 
@@ -26,12 +73,12 @@ public class Relations {
 				if (!friends.contains(target)) {
 					if (receivedFriendRequests.contains(target)) {
 						receivedFriendRequests.remove(target);
-						target.relations.sentFriendRequests.remove(this.account);
+						target.relations().sentFriendRequests.remove(this.account);
 						friends.add(target);
-						target.relations.friends.add(this.account);
+						target.relations().friends.add(this.account);
 					} else if (!sentFriendRequests.contains(target)) {
 						sentFriendRequests.add(target);
-						target.relations.receivedFriendRequests.add(account);
+						target.relations().receivedFriendRequests.add(account);
 					} else {
 						// outgoing friend request already exists
 					}
@@ -43,6 +90,8 @@ public class Relations {
 			}
 
 			checkConsistency(target);
+			account.relationsChanged();
+			target.relationsChanged();
 		}
 	}
 
@@ -52,29 +101,31 @@ public class Relations {
 			checkConsistency(friend);
 
 			friends.remove(friend);
-			friend.relations.friends.remove(account);
+			friend.relations().friends.remove(account);
 			receivedFriendRequests.remove(friend);
-			friend.relations.sentFriendRequests.remove(account);
+			friend.relations().sentFriendRequests.remove(account);
 			sentFriendRequests.remove(friend);
-			friend.relations.receivedFriendRequests.remove(account);
+			friend.relations().receivedFriendRequests.remove(account);
 
 			checkConsistency(friend);
+			account.relationsChanged();
+			friend.relationsChanged();
 		}
 	}
 
 	synchronized public void clear() {
 		Collection<Account> all = new ArrayList<>();
-		all.addAll(friends.getAccounts());
-		all.addAll(sentFriendRequests.getAccounts());
-		all.addAll(receivedFriendRequests.getAccounts());
+		all.addAll(copy(friends));
+		all.addAll(copy(sentFriendRequests));
+		all.addAll(copy(receivedFriendRequests));
 		all.forEach(this::remove);
 		account = null;
 	}
 
 	synchronized private void checkConsistency(Account target) {
-		assert(friends.contains(target) == target.relations.friends.contains(account));
-		assert(receivedFriendRequests.contains(target) == target.relations.sentFriendRequests.contains(account));
-		assert(sentFriendRequests.contains(target) == target.relations.receivedFriendRequests.contains(account));
+		assert(friends.contains(target) == target.relations().friends.contains(account));
+		assert(receivedFriendRequests.contains(target) == target.relations().sentFriendRequests.contains(account));
+		assert(sentFriendRequests.contains(target) == target.relations().receivedFriendRequests.contains(account));
 		assert(!receivedFriendRequests.contains(target) || !sentFriendRequests.contains(target));
 		assert(!friends.contains(target) || !receivedFriendRequests.contains(target));
 		assert(!friends.contains(target) || !sentFriendRequests.contains(target));
@@ -84,17 +135,25 @@ public class Relations {
 	public String toString() {
 		String friendStatus = "";
 		friendStatus += "Current friends:\n";
-		for (Account friend : friends.getAccounts()) {
-			friendStatus += "\t" + friend.username() + " " + (friend.isOnline() ? friend.currentClient.connectedChannel : "[OFFLINE]") + " \n";
+		for (Account friend : copy(friends)) {
+			Client client = friend.currentClient;
+			friendStatus += "\t" + friend.username() + " " + (client != null ? client.connectedChannel : "[OFFLINE]") + " \n";
 		}
 		friendStatus += "Pending sent friend requests: \n";
-		for (Account friend : sentFriendRequests.getAccounts()) {
+		for (Account friend : copy(sentFriendRequests)) {
 			friendStatus += "\t" + friend.username() + "\n";
 		}
 		friendStatus += "Pending received friend requests: \n";
-		for (Account friend : receivedFriendRequests.getAccounts()) {
+		for (Account friend : copy(receivedFriendRequests)) {
 			friendStatus += "\t" + friend.username() + "\n";
 		}
 		return friendStatus;
 	}
+
+	// Like copies(), a plain copy under the lock of the list instead of a snapshot that would stay cached
+	private static List<Account> copy(AccountCollection accounts) {
+		synchronized (accounts) {
+			return new ArrayList<>(accounts);
+		}
+	}
 }
\ No newline at end of file
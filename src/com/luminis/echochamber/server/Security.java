@@ -1,5 +1,9 @@
 package com.luminis.echochamber.server;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -8,6 +12,10 @@ import java.util.UUID;
 class Security {
 	final private static SecureRandom random = new SecureRandom();
 	final private static char[] hexArray = "0123456789ABCDEF".toCharArray();
+	final private static byte[] resumeKey = new byte[32]; // per process, so a restart invalidates all resume tokens
+	static {
+		random.nextBytes(resumeKey);
+	}
 
 	static byte[] getNewSalt() {
 		byte salt[] = new byte[16];
@@ -58,6 +66,54 @@ class Security {
 		return bytes;
 	}
 
+	static long newNonce() {
+		long nonce;
+		do {
+			nonce = random.nextLong();
+		} while (nonce == 0);
+		return nonce;
+	}
+
+	private static final int SIGNATURE_LENGTH = 64; // hex digits of an HMAC-SHA256
+
+	// Resume tokens have the form <client id>.<nonce>.<signature>. The signature lets forged tokens be rejected without
+	// a lookup; the nonce makes every issued token distinct. As the token can be derived again, clients only keep the nonce.
+	static String createResumeToken(UUID id, long nonce) {
+		String payload = id + "." + String.format("%016X", nonce);
+		return payload + "." + byteArrayToHexString(sign(payload));
+	}
+
+	// Returns the client id of a correctly signed token, or null
+	static UUID resumeTokenId(String token) {
+		int separator = token.lastIndexOf('.');
+		if (separator < 0 || token.indexOf('.') == separator) return null;
+		String payload = token.substring(0, separator), signature = token.substring(separator + 1);
+		if (!isHex(signature, SIGNATURE_LENGTH) || !MessageDigest.isEqual(sign(payload), hexStringToByteArray(signature))) return null;
+		try {
+			return UUID.fromString(payload.substring(0, payload.indexOf('.')));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static boolean isHex(String text, int length) {
+		if (text.length() != length) return false;
+		for (int i = 0; i < length; i++) {
+			if (Character.digit(text.charAt(i), 16) < 0) return false;
+		}
+		return true;
+	}
+
+	private static byte[] sign(String payload) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(resumeKey, "HmacSHA256"));
+			return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	static UUID createUUID() {
 		return UUID.randomUUID();
 	}
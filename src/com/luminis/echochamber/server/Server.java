@@ -2,19 +2,68 @@ package com.luminis.echochamber.server;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Server {
 	AccountCollection accounts;
-	private ArrayList<Client> clients = new ArrayList<>();
-	private volatile ArrayList<Channel> channels = new ArrayList<>();
-	private boolean running;
+	private final Set<Client>[] clients; // per shard, so sessions on different shards do not contend
+	private final AtomicInteger clientCount = new AtomicInteger();
+	private final Map<String, Channel> channels = new ConcurrentHashMap<>(); // created on first join, removed after the last leave
+	private final Map<UUID, Client> detached = new ConcurrentHashMap<>(); // sessions that lost their connection but can be resumed
+	private volatile boolean running;
+	final TimerWheel timers = new TimerWheel(Settings.timerTick, TimeUnit.MILLISECONDS, Settings.timerWheelSize);
+
+	// Commands and session cleanup change shared state under the read lock. Shutdown takes the write lock to quiesce
+	// them before the final snapshot.
+	final ReentrantReadWriteLock mutations = new ReentrantReadWriteLock();
 
 	static Channel defaultChannel = new Channel("Default");
 
+	@SuppressWarnings({"unchecked", "rawtypes"})
 	Server(AccountCollection accounts) {
 		this.accounts = accounts;
-		channels.add(defaultChannel);
+		clients = new Set[Settings.shards];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = ConcurrentHashMap.newKeySet();
+		}
+		channels.put(defaultChannel.name(), defaultChannel);
 		running = true;
+		if (accounts.isMapped()) scheduleAccountFlush();
+	}
+
+	private void scheduleAccountFlush() {
+		timers.schedule(() -> {
+			try {
+				accounts.flush();
+			} finally {
+				scheduleAccountFlush();
+			}
+		}, Settings.accountFlushInterval, TimeUnit.SECONDS);
+	}
+
+	// Joins and leaves are counted inside the map's update of the name, so a join never gets a channel that is being
+	// removed. The default channel is kept when it is empty.
+	Channel join(String name) {
+		return channels.compute(name, (key, channel) -> {
+			if (channel == null) channel = new Channel(key);
+			channel.holders++;
+			return channel;
+		});
+	}
+
+	void leave(Channel channel) {
+		channels.computeIfPresent(channel.name(), (key, current) -> --current.holders > 0 || current == defaultChannel ? current : null);
+	}
+
+	Channel findChannel(String name) {
+		return channels.get(name);
 	}
 
 	synchronized void removeAccount(Account account) {
@@ -24,35 +73,129 @@ public class Server {
 		accounts.add(account);
 	}
 
-	synchronized void add(Client client) {
-		clients.add(client);
-		client.message(welcomeMessage());
+	void add(Client client) {
+		clients[client.shard.index].add(client);
+		clientCount.incrementAndGet();
+		client.message(Message.system(welcomeMessage()));
+		if (!running) client.shutdown("Server shutting down"); // a connection that was accepted while stopping
+	}
+	void remove(Client client) {
+		if (clients[client.shard.index].remove(client) && clientCount.decrementAndGet() == 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	void detach(Client client) {
+		detached.put(client.id, client);
+	}
+
+	// Whoever removes a detached client owns it: either a resuming connection or the grace period expiry
+	boolean expire(Client client) {
+		return detached.remove(client.id, client);
 	}
-	synchronized void remove(Client client) {
-		clients.remove(client);
+
+	Client resume(String token) {
+		UUID id = Security.resumeTokenId(token);
+		if (id == null) return null;
+		Client client = detached.get(id);
+		if (client != null && client.acceptsResumeToken(token) && detached.remove(id, client)) return client;
+		return null;
 	}
 
 	public int numberOfClients() {
-		return clients.size();
+		return clientCount.get();
 	}
 
 	private String welcomeMessage() {
 		return  "--------------------------------------------------\n" +
 				"Welcome to the EchoChamber chat server!\n" +
 				"Local time is: " + new Date() + "\n" +
-				"You are client " + numberOfClients() + " of " + ConnectionManager.maxConnectedClients + ".\n" +
+				"You are client " + numberOfClients() + " of " + Settings.maxConnections + ".\n" +
 				"Use /help or /help <command> for more information.\n" +
 				"--------------------------------------------------";
 	}
 
+	// Delivers a message to every session. Each shard delivers to its own sessions, so the fan-out runs in parallel, and
+	// the message is encoded once up front instead of by whichever recipient happens to be first.
+	Announcement announce(Message message) {
+		message.text();
+		message.encoded();
+		Announcement announcement = new Announcement(clients.length);
+		for (int i = 0; i < clients.length; i++) {
+			Set<Client> sessions = clients[i];
+			Shard.get(i).execute(() -> {
+				int delivered = 0;
+				for (Client client : sessions) {
+					if (client.isActive()) {
+						client.message(message);
+						delivered++;
+					}
+				}
+				announcement.shardDone(delivered);
+			});
+		}
+		return announcement;
+	}
+
+	// Stops accepting connections. The listener then returns and the remaining phases run in quiesce().
 	public void shutdown() {
-		running = false;
-		Main.logger.info("Server shutting down...");
-		for(Client client : clients) {
-			Main.logger.info("Shutting down client " + client.id + "...");
-			client.shutdown("Warning: Server shutting down immediately!");
+		if (running) {
+			running = false;
+			Main.logger.info("Server shutting down...");
+		}
+	}
+
+	// Phased shutdown: stop accepting, notify every client, give the connections until the deadline to deliver their
+	// outbound queues and end their sessions, then block further mutations. Returns with the write lock held, so the
+	// caller can take a consistent snapshot. Must not be called from a session thread.
+	boolean quiesce(long drainMillis) {
+		shutdown();
+		long start = System.currentTimeMillis();
+		List<Client> remaining = new ArrayList<>();
+		for (Set<Client> shard : clients) {
+			remaining.addAll(shard);
 		}
+		timers.stop();
+		Announcement warning = announce(Message.system("Warning: Server shutting down!"));
+		// before ending the sessions, or their connections may close without it
+		if (warning.await(drainMillis)) {
+			Main.logger.info("Shutdown warning {}", warning);
+		} else {
+			Main.logger.warn("Shutdown warning not delivered in time: {}", warning.progress());
+		}
+		for (Client client : remaining) {
+			if (expire(client)) {
+				client.cleanup(); // detached, there is no connection to notify
+			} else {
+				client.disconnect();
+			}
+		}
+
+		boolean drained = awaitDrained(start + drainMillis);
+		if (drained) {
+			Main.logger.info("All sessions ended after {} ms", System.currentTimeMillis() - start);
+		} else {
+			Main.logger.warn("{} sessions still open after {} ms, stopping anyway", numberOfClients(), drainMillis);
+		}
+		mutations.writeLock().lock();
 		Main.logger.info("Server stopped");
+		return drained;
+	}
+
+	private synchronized boolean awaitDrained(long deadline) {
+		while (clientCount.get() > 0) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) return false;
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
 	}
 
 	public boolean isActive() {
@@ -0,0 +1,100 @@
+package com.luminis.echochamber.server;
+
+/**
+ * Server tuning knobs. Every setting can be overridden with a system property of the form
+ * -Dechochamber.<name>=<value>, e.g. -Dechochamber.maxConnections=1000
+ */
+class Settings {
+	// Connection admission
+	static final int maxConnections = intSetting("maxConnections", 3);
+	static final int maxConnectionsPerAddress = intSetting("maxConnectionsPerAddress", 3);
+	static final int acceptRate = intSetting("acceptRate", 50); // new connections per second, 0 means unlimited
+	static final int acceptBurst = intSetting("acceptBurst", 20);
+	static final int acceptBacklog = intSetting("acceptBacklog", 50);
+	static final int rejectionQueueSize = intSetting("rejectionQueueSize", 1024);
+
+	// Session housekeeping
+	static final int idleTimeout = intSetting("idleTimeout", 600); // seconds without input before a client is warned
+	static final int keepaliveTimeout = intSetting("keepaliveTimeout", 60); // seconds after the warning before disconnecting
+	static final int resumeGrace = intSetting("resumeGrace", 30); // seconds a dropped session can be resumed, 0 disables resumption
+	static final int shutdownDrainTimeout = intSetting("shutdownDrainTimeout", 5000); // milliseconds for sessions to deliver their output on shutdown
+	static final int shards = Math.max(1, intSetting("shards", Runtime.getRuntime().availableProcessors())); // event loops that own the clients and channel membership
+	static final int commandWorkers = intSetting("commandWorkers", Runtime.getRuntime().availableProcessors()); // threads for the expensive part of commands, like password hashing and listings
+	static final int commandQueueSize = intSetting("commandQueueSize", 1024); // commands waiting for a worker, more are refused
+	static final int timerTick = intSetting("timerTick", 100); // milliseconds
+	static final int timerWheelSize = intSetting("timerWheelSize", 512);
+
+	// Transport
+	static final String listeners = stringSetting("listeners", null); // comma separated [host:]port, defaults to the port on the command line
+	static final int acceptThreads = intSetting("acceptThreads", 1); // accept threads per listener, more than one binds them with SO_REUSEPORT
+	static final boolean tcpNoDelay = booleanSetting("tcpNoDelay", true); // Nagle's algorithm stalls multi-flight TLS handshakes
+	static final int sendBufferSize = intSetting("sendBufferSize", 0); // bytes per connection, 0 keeps the OS default
+	static final int receiveBufferSize = intSetting("receiveBufferSize", 0); // bytes per connection, 0 keeps the OS default
+	static final int handshakeTimeout = intSetting("handshakeTimeout", 300); // milliseconds to wait for the rest of a protocol handshake once it started
+	static final int readTimeout = intSetting("readTimeout", 100); // milliseconds, also the maximum delay for noticing that a session ended while its client is silent
+	static final int maxLineLength = intSetting("maxLineLength", 8192);
+	static final int compressionLevel = intSetting("compressionLevel", 6); // 0 disables compression, 1 (fast) to 9 (small)
+
+	// TLS, enabled by setting a keystore
+	static final String tlsKeystore = stringSetting("tlsKeystore", null);
+	static final String tlsKeystorePassword = stringSetting("tlsKeystorePassword", "");
+	static final int tlsHandshakeThreads = intSetting("tlsHandshakeThreads", Runtime.getRuntime().availableProcessors());
+	static final int tlsHandshakeTimeout = intSetting("tlsHandshakeTimeout", 10000); // milliseconds
+	static final int tlsSessionCacheSize = intSetting("tlsSessionCacheSize", 20000);
+	static final int tlsSessionTimeout = intSetting("tlsSessionTimeout", 86400); // seconds
+
+	// Channels
+	static final int maxChannelsPerClient = intSetting("maxChannelsPerClient", 16);
+	static final int channelBatchWindow = intSetting("channelBatchWindow", 0); // milliseconds to collect channel messages into one delivery, 0 delivers each right away
+	static final int channelBatchMessages = intSetting("channelBatchMessages", 64); // a batch is delivered early once it has this many messages
+
+	// Account storage
+	static final String accountTable = stringSetting("accountTable", null); // keeps permanent accounts in this memory-mapped file instead of on the heap
+	static final int accountTableCapacity = intSetting("accountTableCapacity", 65536); // initial number of records, the table doubles when full
+	static final int accountCacheSize = intSetting("accountCacheSize", 10000); // recently used accounts kept on the heap, besides online and changed ones
+	static final int accountFlushInterval = intSetting("accountFlushInterval", 5); // seconds between writing changed accounts to the table
+	static final int snapshotInterval = intSetting("snapshotInterval", 60); // seconds between background saves of the accounts file, 0 only saves on shutdown
+	static final int snapshotThreshold = intSetting("snapshotThreshold", 1); // account changes needed for a background save
+
+	// Monitoring
+	static final int metricsPort = intSetting("metricsPort", 0); // Prometheus endpoint on localhost, 0 disables it
+
+	// -Dechochamber.channelBatchWindow.<channel>=<milliseconds> overrides the default for one channel
+	static int channelBatchWindow(String channel) {
+		return intSetting("channelBatchWindow." + channel, channelBatchWindow);
+	}
+
+	// -Dechochamber.<setting>.<listener>=<value> overrides a socket setting for one listener, e.g.
+	// -Dechochamber.acceptBacklog.4445=1024 or -Dechochamber.tcpNoDelay.127.0.0.1:4444=false
+	static int acceptThreads(String listener) {
+		return intSetting("acceptThreads." + listener, acceptThreads);
+	}
+
+	static int acceptBacklog(String listener) {
+		return intSetting("acceptBacklog." + listener, acceptBacklog);
+	}
+
+	static boolean tcpNoDelay(String listener) {
+		return booleanSetting("tcpNoDelay." + listener, tcpNoDelay);
+	}
+
+	static int sendBufferSize(String listener) {
+		return intSetting("sendBufferSize." + listener, sendBufferSize);
+	}
+
+	static int receiveBufferSize(String listener) {
+		return intSetting("receiveBufferSize." + listener, receiveBufferSize);
+	}
+
+	private static int intSetting(String name, int defaultValue) {
+		return Integer.getInteger("echochamber." + name, defaultValue);
+	}
+
+	private static boolean booleanSetting(String name, boolean defaultValue) {
+		return Boolean.parseBoolean(System.getProperty("echochamber." + name, Boolean.toString(defaultValue)));
+	}
+
+	private static String stringSetting(String name, String defaultValue) {
+		return System.getProperty("echochamber." + name, defaultValue);
+	}
+}
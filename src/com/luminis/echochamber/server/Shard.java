@@ -0,0 +1,75 @@
+package com.luminis.echochamber.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One partition of the server. Every client belongs to a shard, and each shard has an event loop thread that runs the
+ * tasks posted to it in order. State owned by a shard, like its slice of a channel's members, is only changed on that
+ * thread, so it needs no locks. Other threads reach it by posting a task.
+ */
+class Shard implements Runnable {
+	private static final Shard[] shards = new Shard[Settings.shards];
+	private static final AtomicInteger next = new AtomicInteger();
+
+	final int index;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // many producers, this loop is the only consumer
+	private final Thread thread;
+	private volatile boolean parked;
+
+	private static final Metrics.Counter tasksRun = Metrics.counter("shard_tasks_total", "Tasks run by the shard event loops");
+
+	Shard(int index) {
+		this.index = index;
+		thread = new Thread(this, "Shard " + index);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	static Shard get(int index) {
+		return shards[index];
+	}
+
+	// Round robin, so shards stay balanced without looking at their load
+	static Shard assign() {
+		return shards[Math.floorMod(next.getAndIncrement(), shards.length)];
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (parked) LockSupport.unpark(thread);
+	}
+
+	// Runs the task right away when already on this shard, like a session sending to a channel, otherwise queues it
+	void dispatch(Runnable task) {
+		if (Thread.currentThread() == thread) task.run();
+		else execute(task);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Runnable task = tasks.poll();
+			if (task == null) {
+				parked = true;
+				if (tasks.isEmpty()) LockSupport.park(this); // a task added before parked was set is seen here
+				parked = false;
+				continue;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Main.logger.error("Task on shard {} failed", index, e);
+			}
+			tasksRun.increment();
+		}
+	}
+
+	static {
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard(i);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.luminis.echochamber.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel. Scheduling and cancelling are O(1); a single thread advances the wheel one bucket per tick and
+ * runs the tasks that expired in that bucket. Timeouts are only accurate to one tick, which is all that is needed for
+ * session housekeeping.
+ */
+class TimerWheel {
+	private final long tickNanos;
+	private final ArrayDeque<Timeout>[] buckets;
+	private final int mask;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final Thread worker;
+	private final long startTime;
+	private volatile boolean running = true;
+	private long tick = 0;
+
+	class Timeout {
+		private final Runnable task;
+		private final long deadline; // in ticks since start
+		private long remainingRounds;
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	TimerWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+		int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1; // round up to a power of two
+		tickNanos = unit.toNanos(tickDuration);
+		buckets = new ArrayDeque[size];
+		for (int i = 0; i < size; i++) buckets[i] = new ArrayDeque<>();
+		mask = size - 1;
+
+		startTime = System.nanoTime();
+		worker = new Thread(this::run, "Timer wheel");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		long ticks = Math.max(1, (System.nanoTime() - startTime + unit.toNanos(delay) + tickNanos - 1) / tickNanos);
+		Timeout timeout = new Timeout(task, ticks);
+		pending.add(timeout);
+		return timeout;
+	}
+
+	void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	private void run() {
+		while (running) {
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long sleep = deadline - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			tick++;
+			transferPending();
+			expire(buckets[(int) (tick & mask)]);
+		}
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) continue;
+			long target = Math.max(timeout.deadline, tick);
+			timeout.remainingRounds = (target - tick) / buckets.length;
+			buckets[(int) (target & mask)].add(timeout);
+		}
+	}
+
+	private void expire(ArrayDeque<Timeout> bucket) {
+		Iterator<Timeout> iterator = bucket.iterator();
+		while (iterator.hasNext()) {
+			Timeout timeout = iterator.next();
+			if (timeout.cancelled) {
+				iterator.remove();
+			} else if (timeout.remainingRounds <= 0) {
+				iterator.remove();
+				try {
+					timeout.task.run();
+				} catch (Exception e) {
+					Main.logger.error("Timer task failed", e);
+				}
+			} else {
+				timeout.remainingRounds--;
+			}
+		}
+	}
+}
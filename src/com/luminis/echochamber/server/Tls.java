@@ -0,0 +1,36 @@
+package com.luminis.echochamber.server;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+class Tls {
+	/**
+	 * Creates a server context from a local keystore (PKCS12 if the file name ends in .p12 or .pfx, otherwise the JVM
+	 * default type). The server session cache lets reconnecting clients resume their session with an abbreviated
+	 * handshake; on JDKs that support it, stateless session tickets are used as well.
+	 */
+	static SSLContext serverContext(Path keystore, char[] password) throws GeneralSecurityException, IOException {
+		String name = keystore.getFileName().toString().toLowerCase();
+		KeyStore keyStore = KeyStore.getInstance(name.endsWith(".p12") || name.endsWith(".pfx") ? "PKCS12" : KeyStore.getDefaultType());
+		try (InputStream in = Files.newInputStream(keystore)) {
+			keyStore.load(in, password);
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, password);
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(Settings.tlsSessionCacheSize);
+		sessions.setSessionTimeout(Settings.tlsSessionTimeout);
+		return context;
+	}
+}
@@ -0,0 +1,76 @@
+package com.luminis.echochamber.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClientTest {
+	private static final long TIMEOUT = 5000; // milliseconds
+
+	private Server server;
+	private Account account;
+
+	@Before
+	public void setUp() {
+		server = new Server(new AccountCollection());
+		account = new Account("alice", "password".getBytes());
+		server.addAccount(account);
+	}
+
+	@After
+	public void tearDown() {
+		server.timers.stop();
+	}
+
+	// The stock client does not resume, so after a dropped connection it logs in again within the grace period
+	@Test
+	public void loginTakesOverDetachedSession() throws InterruptedException {
+		Client dropped = new Client(server, Security.createUUID());
+		dropped.receive("/login alice password");
+		awaitReply(dropped, "Login successful");
+		assertTrue("session kept for resumption", dropped.connectionClosed());
+
+		Client client = new Client(server, Security.createUUID());
+		client.receive("/login alice password");
+		awaitReply(client, "Login successful");
+		assertSame(client, account.currentClient);
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (server.numberOfClients() > 1) {
+			assertTrue("detached session ended", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		assertSame("account kept by the new session", client, account.currentClient);
+		client.cleanup();
+	}
+
+	@Test
+	public void loginRefusedWhileConnected() throws InterruptedException {
+		Client connected = new Client(server, Security.createUUID());
+		connected.receive("/login alice password");
+		awaitReply(connected, "Login successful");
+
+		Client client = new Client(server, Security.createUUID());
+		client.receive("/login alice password");
+		awaitReply(client, "Account already logged in");
+		assertSame(connected, account.currentClient);
+		connected.cleanup();
+		client.cleanup();
+	}
+
+	// Takes the output of the client until a message that starts with the text
+	private static void awaitReply(Client client, String text) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (true) {
+			Message message = client.outputForRemote();
+			if (message == null) {
+				assertTrue("no reply '" + text + "'", System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			} else if (message.text().startsWith(text)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.luminis.echochamber.server;
+
+import org.junit.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+// Retained heap per account and per session as measured by JOL. The budgets follow from fitting 1M accounts and 100k
+// sessions in a modest heap. Run with -Dfootprint.verbose=true to see where the bytes go.
+public class FootprintTest {
+	private static final int COUNT = 1000;
+	private static final long ACCOUNT_BUDGET = 256;
+	private static final long SESSION_BUDGET = 1024;
+	private static final long TIMEOUT = 5000; // milliseconds
+
+	@Test
+	public void permanentAccount() {
+		Account[] accounts = new Account[COUNT];
+		for (int i = 0; i < COUNT; i++) {
+			accounts[i] = new Account(String.format("user%06d", i), "password".getBytes());
+		}
+		long perAccount = measure("permanent account", GraphLayout.parseInstance((Object[]) accounts)) / COUNT;
+		assertTrue("permanent account takes " + perAccount + " bytes", perAccount <= ACCOUNT_BUDGET);
+	}
+
+	@Test
+	public void transientAccount() {
+		Account[] accounts = new Account[COUNT];
+		for (int i = 0; i < COUNT; i++) {
+			accounts[i] = new Account(String.format("user%06d", i));
+		}
+		long perAccount = measure("transient account", GraphLayout.parseInstance((Object[]) accounts)) / COUNT;
+		assertTrue("transient account takes " + perAccount + " bytes", perAccount <= ACCOUNT_BUDGET);
+	}
+
+	// Everything a logged in session adds to the server: client, temporary account, channel subscription and timers
+	@Test
+	public void session() throws InterruptedException {
+		Server server = new Server(new AccountCollection());
+		Client[] clients = new Client[COUNT];
+		try {
+			long before = GraphLayout.parseInstance(server, Server.defaultChannel).totalSize();
+			for (int i = 0; i < COUNT; i++) {
+				clients[i] = new Client(server, Security.createUUID());
+				clients[i].receive(String.format("/setname session%06d", i));
+			}
+			for (Client client : clients) {
+				awaitReply(client, "You are now logged in as");
+			}
+			settleShards(); // the channel subscriptions
+			settleShards(); // the presence broadcasts they sent
+			for (Client client : clients) {
+				while (client.outputForRemote() != null) ; // welcome and join messages are transient
+			}
+			long after = measure("session", GraphLayout.parseInstance(server, Server.defaultChannel));
+			long perSession = (after - before) / COUNT;
+			assertTrue("session takes " + perSession + " bytes", perSession <= SESSION_BUDGET);
+		} finally {
+			for (Client client : clients) {
+				if (client != null) client.cleanup();
+			}
+			server.timers.stop();
+		}
+	}
+
+	// Takes the output of the client until a message that starts with the text, as the commands run on the shards
+	private static void awaitReply(Client client, String text) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (true) {
+			Message message = client.outputForRemote();
+			if (message == null) {
+				assertTrue("no reply '" + text + "'", System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			} else if (message.text().startsWith(text)) {
+				return;
+			}
+		}
+	}
+
+	private static void settleShards() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(Settings.shards);
+		for (int i = 0; i < Settings.shards; i++) {
+			Shard.get(i).execute(done::countDown);
+		}
+		done.await();
+	}
+
+	private static long measure(String what, GraphLayout layout) {
+		if (Boolean.getBoolean("footprint.verbose")) {
+			System.out.println(what + ":\n" + layout.toFootprint());
+		}
+		return layout.totalSize();
+	}
+}